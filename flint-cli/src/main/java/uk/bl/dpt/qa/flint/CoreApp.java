@@ -25,14 +25,13 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.bl.dpt.qa.flint.checks.CheckResult;
 import uk.bl.dpt.qa.flint.formats.Format;
+import uk.bl.dpt.qa.flint.worker.WorkerPool;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
 import java.util.Map;
 
 import static uk.bl.dpt.qa.flint.Flint.getAvailableFormats;
@@ -64,6 +63,29 @@ public class CoreApp {
                             "in the specified directory; the filename has to have the format " +
                             "'<FORMAT_TYPE>-policy.properties', where FORMAT_TYPE can be one of " +
                             formats.keySet());
+            parser.addArgument("-t", "--threads")
+                    .type(Integer.class)
+                    .help("Number of files to check in parallel.")
+                    .setDefault(1);
+            parser.addArgument("-w", "--workers")
+                    .type(Integer.class)
+                    .help("Number of separate JVMs to check the files in, so that a file crashing " +
+                            "its parser doesn't crash FLint; 0 checks the files in this JVM.")
+                    .setDefault(0);
+            parser.addArgument("--worker-heap")
+                    .help("Maximum heap size of each worker JVM, as for -Xmx.")
+                    .setDefault("1g");
+            parser.addArgument("--worker-timeout")
+                    .type(Long.class)
+                    .help("Time [s] after which a worker JVM checking a file is killed.")
+                    .setDefault(30 * 60L);
+            parser.addArgument("--cache-dir")
+                    .help("Directory to keep check-results in, so that files checked before with the " +
+                            "same format version and policy aren't checked again.");
+            parser.addArgument("--manifest")
+                    .help("File recording size, modification time and digest of the checked files, so " +
+                            "that only the first bytes of unchanged files are read on the next run, to tell " +
+                            "their format; needs --cache-dir.");
 
             File output;
             Namespace ns = parser.parseArgs(args);
@@ -88,15 +110,34 @@ public class CoreApp {
                     System.out.println("Input " + f + " " + inputFile + " not found.");
                     System.exit(1);
                 }
-                List<List<CheckResult>> resultCollection;
                 String ppd = ns.getString("policy_properties_dir");
-                if (ppd != null) {
-                    resultCollection = Flint.checkMany(inputFile, new File(ppd));
-                } else {
-                    resultCollection = Flint.checkMany(inputFile, new Flint());
+                Flint flint = (ppd != null) ? new Flint(new File(ppd)) : new Flint();
+                ResultCache cache = null;
+                if (ns.getString("cache_dir") != null) {
+                    cache = new ResultCache(new File(ns.getString("cache_dir")));
+                    if (ns.getString("manifest") != null) {
+                        cache.setManifest(new FileManifest(new File(ns.getString("manifest"))));
+                    }
+                    flint.setResultCache(cache);
+                } else if (ns.getString("manifest") != null) {
+                    System.out.println("--manifest can only be used together with --cache-dir");
+                    System.exit(1);
+                }
+                int threads = ns.getInt("threads");
+                int workers = ns.getInt("workers");
+                WorkerPool pool = null;
+                if (workers > 0) {
+                    pool = new WorkerPool(workers, ns.getString("worker_heap"), ns.getLong("worker_timeout"));
+                    flint.setWorkerPool(pool);
+                    // keep all workers busy
+                    threads = Math.max(threads, workers);
                 }
-                for (List<CheckResult> results : resultCollection) {
-                    Flint.printResults(results, out);
+                try {
+                    // results are written (and flushed) file by file, as soon as they are available
+                    Flint.checkMany(inputFile, flint, threads, new XmlResultSink(out));
+                } finally {
+                    if (pool != null) pool.close();
+                    if (cache != null && cache.getManifest() != null) cache.getManifest().save();
                 }
                 LOGGER.info("DONE.");
                 System.out.println("\ndone. results written to " + output);
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ResultSink} that keeps all results in memory, one list of check-results per file.
+ */
+public class CollectingResultSink implements ResultSink {
+
+    private final List<List<CheckResult>> results = new ArrayList<List<CheckResult>>();
+    private List<CheckResult> current = null;
+
+    @Override
+    public void startFile(File pFile) {
+        current = new ArrayList<CheckResult>();
+    }
+
+    @Override
+    public void add(File pFile, CheckResult pResult) {
+        current.add(pResult);
+    }
+
+    @Override
+    public void endFile(File pFile) {
+        results.add(current);
+        current = null;
+    }
+
+    /**
+     * @return a list of check-result lists, one list for each file, in the order they were added
+     */
+    public List<List<CheckResult>> getResults() {
+        return results;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the size, modification time and content digest of the files checked in a
+ * run, so that the next run only needs to read the files that are new or have changed.
+ *
+ * Used by a {@link ResultCache}, an unchanged file's digest is taken from the manifest,
+ * which makes looking up its carried-forward result a matter of a stat call and a
+ * small read from the cache directory.
+ *
+ * The manifest is a text file with one line per file: digest, size, modification
+ * time and absolute path, separated by tabs.  New entries are appended to the file
+ * as soon as they are recorded, so a run that is killed half-way keeps the digests of
+ * the files it got through; {@link #save()} writes the manifest afresh, with one
+ * line per file and without the files that have gone since.
+ */
+public class FileManifest {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(FileManifest.class);
+
+    private final File file;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final Object journalLock = new Object();
+    private Writer journal = null;
+    private boolean journalFailed = false;
+
+    /**
+     * Create a new FileManifest, loading the entries of a previous run if the file exists
+     * @param pFile the manifest file
+     * @throws IOException if an existing manifest can't be read
+     */
+    public FileManifest(File pFile) throws IOException {
+        this.file = pFile;
+        if (pFile.isFile()) {
+            load();
+        }
+    }
+
+    /**
+     * Get the digest recorded for a file, if the file hasn't changed since
+     * @param pFile the file
+     * @return the recorded digest, or null if the file is new or has changed
+     */
+    public String getDigest(File pFile) {
+        Entry entry = entries.get(pFile.getAbsolutePath());
+        if (entry != null && entry.size == pFile.length() && entry.modified == pFile.lastModified()) {
+            entry.seen = true;
+            return entry.digest;
+        }
+        return null;
+    }
+
+    /**
+     * Record the digest of a file, together with its current size and modification time
+     * @param pFile the file
+     * @param pDigest the digest of its content
+     */
+    public void putDigest(File pFile, String pDigest) {
+        String path = pFile.getAbsolutePath();
+        if (path.indexOf('\n') != -1 || path.indexOf('\r') != -1) {
+            // can't be written to a line-based manifest, it is simply digested every time
+            return;
+        }
+        Entry entry = new Entry(pDigest, pFile.length(), pFile.lastModified());
+        entry.seen = true;
+        entries.put(path, entry);
+        append(path, entry);
+    }
+
+    /**
+     * @return the number of files in the manifest
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the manifest afresh, dropping the entries of files that haven't been seen
+     * in this run and don't exist any more.  It is written to a temporary file first,
+     * so a run that is killed while saving leaves the previous manifest intact.
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        synchronized (journalLock) {
+            closeJournal();
+            int pruned = 0;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (!e.getValue().seen && !new File(e.getKey()).exists()) {
+                    entries.remove(e.getKey(), e.getValue());
+                    pruned++;
+                }
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+                try {
+                    // sorted, so manifests of successive runs can be compared
+                    for (Map.Entry<String, Entry> e : new TreeMap<String, Entry>(entries).entrySet()) {
+                        out.print(line(e.getKey(), e.getValue()));
+                    }
+                } finally {
+                    out.close();
+                }
+                if (out.checkError()) throw new IOException("can't write manifest " + tmp);
+                try {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                if (tmp.exists()) tmp.delete();
+            }
+            LOGGER.info("saved manifest of {} files to {}, dropped {} files that have gone", entries.size(), file, pruned);
+        }
+    }
+
+    /**
+     * Append an entry to the manifest file
+     */
+    private void append(String pPath, Entry pEntry) {
+        synchronized (journalLock) {
+            if (journalFailed) return;
+            try {
+                if (journal == null) {
+                    boolean newLine = endsWithPartialLine();
+                    journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+                    // the previous run may have been killed in the middle of a line
+                    if (newLine) journal.write('\n');
+                }
+                journal.write(line(pPath, pEntry));
+                journal.flush();
+            } catch (IOException e) {
+                // the entries are still written by save()
+                LOGGER.warn("can't append to manifest {}, entries are only written at the end of the run: {}", file, e);
+                journalFailed = true;
+                closeJournal();
+            }
+        }
+    }
+
+    private boolean endsWithPartialLine() throws IOException {
+        if (!file.isFile() || file.length() == 0) return false;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.warn("can't close manifest {}: {}", file, e);
+        }
+        journal = null;
+    }
+
+    private static String line(String pPath, Entry pEntry) {
+        return pEntry.digest + "\t" + pEntry.size + "\t" + pEntry.modified + "\t" + pPath + "\n";
+    }
+
+    private void load() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    LOGGER.warn("ignoring broken manifest line: {}", line);
+                    continue;
+                }
+                try {
+                    entries.put(fields[3], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("ignoring broken manifest line: {}", line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        LOGGER.info("loaded manifest of {} files from {}", entries.size(), file);
+    }
+
+    private static class Entry {
+        private final String digest;
+        private final long size;
+        private final long modified;
+        // whether the file has been looked up or recorded in this run
+        private volatile boolean seen = false;
+
+        Entry(String pDigest, long pSize, long pModified) {
+            this.digest = pDigest;
+            this.size = pSize;
+            this.modified = pModified;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import uk.bl.dpt.qa.flint.checks.CheckResult;
 import uk.bl.dpt.qa.flint.formats.Format;
 import uk.bl.dpt.qa.flint.formats.PolicyAware;
+import uk.bl.dpt.qa.flint.worker.WorkerPool;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -30,6 +31,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -48,8 +51,18 @@ public class Flint {
 
     private static Logger gLogger = LoggerFactory.getLogger(Flint.class);
 
+    // the format implementations on the classpath; scanning for them is expensive, so it is only done once
+    private static volatile List<Class<? extends Format>> formatClasses = null;
+
     private Collection<Format> formats = new HashSet<Format>();
 
+    // routes files to the formats that can check them
+    private FormatDispatch dispatch;
+
+    private WorkerPool workerPool = null;
+
+    private ResultCache resultCache = null;
+
     /**
      * Create a new FLint object, adding an instance of all formats to the format list
      * for use by check()
@@ -58,6 +71,7 @@ public class Flint {
      */
     public Flint() throws IllegalAccessException, InstantiationException {
         formats = getAvailableFormats().values();
+        dispatch = new FormatDispatch(formats);
     }
 
     /**
@@ -73,6 +87,7 @@ public class Flint {
      */
     public Flint(File policyDir) throws IllegalAccessException, InstantiationException, IOException {
         formats = getAvailableFormats().values();
+        dispatch = new FormatDispatch(formats);
         for (Format f : formats) {
             if (f instanceof PolicyAware) {
                 final String formatName = f.getFormatName();
@@ -104,6 +119,7 @@ public class Flint {
      */
     public Flint(Map<String, Set<String>> policyMap) throws InstantiationException, IllegalAccessException {
         formats = getAvailableFormats().values();
+        dispatch = new FormatDispatch(formats);
         for (Format f : formats) {
             if (f instanceof PolicyAware) {
                 ((PolicyAware) f).setPatternFilter(policyMap.get(f.getFormatName()));
@@ -112,33 +128,106 @@ public class Flint {
     }
 
     /**
+     * Create a new FLint object with its own, fresh set of format instances, configured
+     * with the same policy pattern filters as the given FLint object.
+     *
+     * This is used to give each worker of a {@link ParallelChecker} an isolated copy
+     * of the (stateful) formats.
+     *
+     * @param template the FLint object whose configuration should be copied
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    public Flint(Flint template) throws IllegalAccessException, InstantiationException {
+        formats = getAvailableFormats().values();
+        dispatch = new FormatDispatch(formats);
+        for (Format f : formats) {
+            Format templateFormat = template.getFormat(f.getFormatName());
+            if (f instanceof PolicyAware && templateFormat instanceof PolicyAware) {
+                Set<String> filter = ((PolicyAware) templateFormat).getPatternFilter();
+                ((PolicyAware) f).setPatternFilter(filter == null ? null : new HashSet<String>(filter));
+            }
+        }
+        workerPool = template.workerPool;
+        resultCache = template.resultCache;
+    }
+
+    /**
+     * Have the formats' checks run in the worker processes of the given pool instead of
+     * in this JVM.  The pool is not closed by FLint.
+     * @param pWorkerPool the pool to use, or null to check in this JVM
+     */
+    public void setWorkerPool(WorkerPool pWorkerPool) {
+        this.workerPool = pWorkerPool;
+    }
+
+    /**
+     * Have the results of checks looked up in and stored to the given cache, so files
+     * that have been checked before in the same way aren't checked again.
+     * @param pResultCache the cache to use, or null to always check
+     */
+    public void setResultCache(ResultCache pResultCache) {
+        this.resultCache = pResultCache;
+    }
+
+    /**
+     * Gets the format implementations on the classpath.  The classpath is only scanned
+     * on the first call, later calls return the same classes.
+     * @return the format classes, ordered by name
+     */
+    static List<Class<? extends Format>> getFormatClasses() {
+        List<Class<? extends Format>> classes = formatClasses;
+        if (classes == null) {
+            synchronized (Flint.class) {
+                classes = formatClasses;
+                if (classes == null) {
+                    classes = new ArrayList<Class<? extends Format>>(
+                            new Reflections("uk.bl.dpt.qa.flint.formats").getSubTypesOf(Format.class));
+                    Collections.sort(classes, new Comparator<Class<?>>() {
+                        @Override
+                        public int compare(Class<?> c1, Class<?> c2) {
+                            return c1.getName().compareTo(c2.getName());
+                        }
+                    });
+                    for (Class<? extends Format> fClass : classes) {
+                        gLogger.info("available format {}", fClass);
+                    }
+                    formatClasses = classes = Collections.unmodifiableList(classes);
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * The format classes are looked up only once, but every call returns new instances,
+     * as formats keep state such as their pattern filter.
      * @return a list of available formats, gathered via *reflection*
      * @throws IllegalAccessException
      * @throws InstantiationException
      */
     public static Map<String, Format> getAvailableFormats() throws IllegalAccessException, InstantiationException {
         Map<String, Format> fs = new LinkedHashMap<String, Format>();
-        Set<Class<? extends Format>> reflections = new Reflections("uk.bl.dpt.qa.flint.formats").getSubTypesOf(Format.class);
-        for (Class<? extends Format> fClass : reflections) {
+        for (Class<? extends Format> fClass : getFormatClasses()) {
             Format f = fClass.newInstance();
-            gLogger.info("available format {}, as in {}", fClass, fClass);
             fs.put(f.getFormatName(), f);
         }
         return fs;
     }
 
     /**
-     * @return a list of available formats, gathered via *reflection*
+     * The format classes are looked up only once, but every call returns new instances,
+     * as formats keep state such as their pattern filter.
+     * @return a list of available formats that can check the given mimetype, gathered via *reflection*
      * @throws IllegalAccessException
      * @throws InstantiationException
      */
     public static Map<String, Format> getAvailableFormats(String mimeType) throws IllegalAccessException, InstantiationException {
         Map<String, Format> fs = new LinkedHashMap<String, Format>();
-        Set<Class<? extends Format>> reflections = new Reflections("uk.bl.dpt.qa.flint.formats").getSubTypesOf(Format.class);
-        for (Class<? extends Format> fClass : reflections) {
+        for (Class<? extends Format> fClass : getFormatClasses()) {
             Format f = fClass.newInstance();
             if (f.canCheck(mimeType)) {
-                gLogger.info("available format {}, as in {}", fClass, fClass);
+                gLogger.debug("available format {} for {}", fClass, mimeType);
                 fs.put(f.getFormatName(), f);
             }
         }
@@ -165,29 +254,59 @@ public class Flint {
      * @return a list of {@link uk.bl.dpt.qa.flint.checks.CheckResult}
      */
     public List<CheckResult> check(File pFile) {
+        CollectingResultSink sink = new CollectingResultSink();
+        check(pFile, sink);
+        return sink.getResults().get(0);
+    }
+
+    /**
+     * Check a file using the specific format's check criteria, handing each
+     * {@link uk.bl.dpt.qa.flint.checks.CheckResult} to the sink as soon as it is available.
+     * @param pFile file to check
+     * @param pSink the sink to hand the results to
+     */
+    public void check(File pFile, ResultSink pSink) {
 
         boolean checked = false;
 
         String mimetype = getMimetype(pFile);
-
-        List<CheckResult> results = new ArrayList<CheckResult>();
+        String digest = null;
 
         gLogger.info("Starting to check file {}..", pFile.getName());
-        for(Format format:formats) {
-            if(format.canCheck(pFile, mimetype)) {
-                gLogger.info("Validating {} with {} checker", pFile.getName(), format.getFormatName());
-                CheckResult checkResult = format.validationResult(pFile);
-                gLogger.info("check-result: {}", checkResult);
-                results.add(checkResult);
+        pSink.startFile(pFile);
+        try {
+            for(Format format:dispatch.formatsFor(pFile, mimetype)) {
+                CheckResult checkResult = null;
+                if (resultCache != null && digest == null) {
+                    try {
+                        digest = resultCache.contentDigest(pFile);
+                    } catch (IOException e) {
+                        gLogger.warn("can't digest {}, checking it without the result cache: {}", pFile, e);
+                    }
+                }
+                if (digest != null) {
+                    checkResult = resultCache.get(pFile, digest, format);
+                    if (checkResult != null) {
+                        gLogger.info("found cached check-result: {}", checkResult);
+                    }
+                }
+                if (checkResult == null) {
+                    gLogger.info("Validating {} with {} checker", pFile.getName(), format.getFormatName());
+                    checkResult = (workerPool != null) ?
+                            workerPool.check(format, pFile) : format.validationResult(pFile);
+                    gLogger.info("check-result: {}", checkResult);
+                    if (digest != null) resultCache.put(digest, format, checkResult);
+                }
+                pSink.add(pFile, checkResult);
                 checked = true;
             }
+        } finally {
+            pSink.endFile(pFile);
         }
 
         if(!checked) {
             gLogger.error("Unable to check: {}, mimetype: {}", pFile, mimetype);
         }
-
-        return results;
     }
 
     /**
@@ -200,17 +319,62 @@ public class Flint {
      * @throws IllegalAccessException
      */
     public static List<List<CheckResult>> checkMany(File inputFile, Flint flint) throws InstantiationException, IllegalAccessException {
+        CollectingResultSink sink = new CollectingResultSink();
+        checkMany(inputFile, flint, sink);
+        return sink.getResults();
+    }
+
+    /**
+     * Checks a file or all files in a directory recursively using a given FLint instance,
+     * handing the results of each file to the sink as soon as they are available.
+     *
+     * @param inputFile a file or directory
+     * @param flint a FLint instance
+     * @param sink the sink to hand the results to
+     */
+    public static void checkMany(File inputFile, Flint flint, ResultSink sink) {
         List<File> files = new LinkedList<File>();
         traverse(inputFile, files);
 
-        List<List<CheckResult>> results = new ArrayList<List<CheckResult>>();
-
         gLogger.info("Will now search {} files and parse the ones of suitable format.", files.size());
         for(File file:files) {
             gLogger.debug("Checking: {}", file);
-            results.add(flint.check(file));
+            flint.check(file, sink);
+        }
+    }
+
+    /**
+     * Checks a file or all files in a directory recursively using a number of parallel
+     * workers, each of them using its own copy of the given FLint instance.
+     *
+     * @param inputFile a file or directory
+     * @param flint a FLint instance used as template for the workers
+     * @param threads the number of workers; 1 or less checks the files one after another
+     * @return a list of check-result lists, one list for each file, in order of completion
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    public static List<List<CheckResult>> checkMany(File inputFile, Flint flint, int threads) throws InstantiationException, IllegalAccessException {
+        CollectingResultSink sink = new CollectingResultSink();
+        checkMany(inputFile, flint, threads, sink);
+        return sink.getResults();
+    }
+
+    /**
+     * Checks a file or all files in a directory recursively using a number of parallel
+     * workers, handing the results of each file to the sink as soon as it is checked.
+     *
+     * @param inputFile a file or directory
+     * @param flint a FLint instance used as template for the workers
+     * @param threads the number of workers; 1 or less checks the files one after another
+     * @param sink the sink to hand the results to
+     */
+    public static void checkMany(File inputFile, Flint flint, int threads, ResultSink sink) {
+        if (threads <= 1) {
+            checkMany(inputFile, flint, sink);
+        } else {
+            new ParallelChecker(flint, threads).checkMany(inputFile, sink);
         }
-        return results;
     }
 
     /**
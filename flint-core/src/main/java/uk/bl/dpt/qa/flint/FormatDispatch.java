@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import uk.bl.dpt.qa.flint.formats.FileTypeAware;
+import uk.bl.dpt.qa.flint.formats.Format;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the formats that can check a file.
+ *
+ * The mimetypes and extensions of {@link FileTypeAware} formats are put into lookup
+ * tables when the dispatch is created, so routing a file to them takes a hash lookup
+ * for the mimetype and a scan of the few known extensions, matched in place against
+ * the file's path, and if both agree doesn't allocate anything.  All other formats are asked with
+ * {@link Format#canCheck(File, String)}.  The formats are returned in the order they
+ * were given in.
+ */
+class FormatDispatch {
+
+    private final List<Format> formats;
+    private final boolean hasOthers;
+    private final Map<String, List<Format>> byMimetype = new HashMap<String, List<Format>>();
+    private final Map<String, List<Format>> byExtension = new HashMap<String, List<Format>>();
+    // the extensions and their formats, to be matched against a path without taking it apart
+    private final List<String> extensions = new ArrayList<String>();
+    private final List<List<Format>> extensionFormats = new ArrayList<List<Format>>();
+
+    /**
+     * Create a new FormatDispatch
+     * @param pFormats the formats to route files to
+     */
+    FormatDispatch(Collection<Format> pFormats) {
+        this.formats = Collections.unmodifiableList(new ArrayList<Format>(pFormats));
+        boolean others = false;
+        for (Format format : formats) {
+            if (format instanceof FileTypeAware) {
+                index(byMimetype, format.acceptedMimeTypes(), format);
+                index(byExtension, ((FileTypeAware) format).acceptedExtensions(), format);
+            } else {
+                others = true;
+            }
+        }
+        this.hasOthers = others;
+        // equal lists are shared, so a file whose mimetype and extension agree is
+        // recognised by comparing references
+        Map<List<Format>, List<Format>> shared = new HashMap<List<Format>, List<Format>>();
+        share(byMimetype, shared);
+        share(byExtension, shared);
+        for (Map.Entry<String, List<Format>> entry : byExtension.entrySet()) {
+            extensions.add(entry.getKey());
+            extensionFormats.add(entry.getValue());
+        }
+    }
+
+    private static void index(Map<String, List<Format>> pTable, Collection<String> pKeys, Format pFormat) {
+        if (pKeys == null) return;
+        for (String key : pKeys) {
+            List<Format> fs = pTable.get(key);
+            if (fs == null) {
+                fs = new ArrayList<Format>();
+                pTable.put(key, fs);
+            }
+            if (!fs.contains(pFormat)) fs.add(pFormat);
+        }
+    }
+
+    private static void share(Map<String, List<Format>> pTable, Map<List<Format>, List<Format>> pShared) {
+        for (Map.Entry<String, List<Format>> entry : pTable.entrySet()) {
+            List<Format> fs = pShared.get(entry.getValue());
+            if (fs == null) {
+                fs = Collections.unmodifiableList(entry.getValue());
+                pShared.put(entry.getValue(), fs);
+            }
+            entry.setValue(fs);
+        }
+    }
+
+    /**
+     * @return all formats, in order
+     */
+    List<Format> getFormats() {
+        return formats;
+    }
+
+    /**
+     * Find the formats that can check a file
+     * @param pFile the file
+     * @param pMimetype the file's mimetype, may be null
+     * @return the formats that can check the file, in order; the list must not be modified
+     */
+    List<Format> formatsFor(File pFile, String pMimetype) {
+        List<Format> byMime = (pMimetype == null) ? null : byMimetype.get(pMimetype);
+        List<Format> byExt = byExtension(pFile);
+        if (!hasOthers) {
+            if (byExt == null || byExt == byMime) return (byMime == null) ? Collections.<Format>emptyList() : byMime;
+            if (byMime == null) return byExt;
+        }
+        List<Format> fs = new ArrayList<Format>();
+        for (Format format : formats) {
+            boolean can = (format instanceof FileTypeAware) ?
+                    (byMime != null && byMime.contains(format)) || (byExt != null && byExt.contains(format)) :
+                    format.canCheck(pFile, pMimetype);
+            if (can) fs.add(format);
+        }
+        return fs;
+    }
+
+    /**
+     * Find the formats accepting the extension of a file, ignoring case
+     * @param pFile a file
+     * @return the formats accepting the file's extension, or null if there are none
+     */
+    private List<Format> byExtension(File pFile) {
+        // getPath() returns the file's own string, unlike getName()
+        String path = pFile.getPath();
+        int start = path.lastIndexOf('.') + 1;
+        if (start == 0 || path.indexOf('/', start) >= 0 || path.indexOf(File.separatorChar, start) >= 0) {
+            // no extension
+            start = path.length();
+        }
+        int length = path.length() - start;
+        for (int i = 0; i < extensions.size(); i++) {
+            String extension = extensions.get(i);
+            if (extension.length() == length && path.regionMatches(true, start, extension, 0, length)) {
+                return extensionFormats.get(i);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static uk.bl.dpt.utils.util.FileUtil.traverse;
+
+/**
+ * Checks many files in parallel using a fixed number of workers.
+ *
+ * Every worker gets its own copy of the template {@link Flint} object, and therefore its
+ * own format instances, so that no format state is shared between workers. The files are
+ * fed to the workers through a bounded queue, and the results are handed back in the order
+ * the checks complete, which is not necessarily the order the files were found in.
+ *
+ * A file whose check throws gets a check-result with a failed {@link #CHECK_CATEGORY}
+ * category, added to whatever results its check produced before, so it isn't
+ * missing from the output.
+ */
+public class ParallelChecker {
+
+    private static Logger gLogger = LoggerFactory.getLogger(ParallelChecker.class);
+
+    /**
+     * Name of the category that marks a file whose check threw an exception
+     */
+    public static final String CHECK_CATEGORY = "check";
+
+    private final Flint template;
+    private final int workers;
+    private final int queueSize;
+
+    /**
+     * Create a new ParallelChecker with a queue holding twice as many files as there are workers
+     * @param pTemplate the FLint object each worker's copy is based on
+     * @param pWorkers number of files to check at the same time
+     */
+    public ParallelChecker(Flint pTemplate, int pWorkers) {
+        this(pTemplate, pWorkers, 2 * pWorkers);
+    }
+
+    /**
+     * Create a new ParallelChecker
+     * @param pTemplate the FLint object each worker's copy is based on
+     * @param pWorkers number of files to check at the same time
+     * @param pQueueSize number of files that may be waiting for a free worker
+     */
+    public ParallelChecker(Flint pTemplate, int pWorkers, int pQueueSize) {
+        if (pWorkers < 1) throw new IllegalArgumentException("need at least one worker, got " + pWorkers);
+        if (pQueueSize < 1) throw new IllegalArgumentException("queue size has to be positive, got " + pQueueSize);
+        this.template = pTemplate;
+        this.workers = pWorkers;
+        this.queueSize = pQueueSize;
+    }
+
+    /**
+     * Checks a file or all files in a directory recursively.
+     *
+     * @param inputFile a file or directory
+     * @return a list of check-result lists, one list for each file, in order of completion
+     */
+    public List<List<CheckResult>> checkMany(File inputFile) {
+        CollectingResultSink sink = new CollectingResultSink();
+        checkMany(inputFile, sink);
+        return sink.getResults();
+    }
+
+    /**
+     * Checks a file or all files in a directory recursively, handing the results of each
+     * file to the sink as soon as its check has completed.
+     *
+     * The sink is only ever called from the calling thread.
+     *
+     * @param inputFile a file or directory
+     * @param sink the sink to hand the results to
+     */
+    public void checkMany(File inputFile, ResultSink sink) {
+        List<File> files = new LinkedList<File>();
+        traverse(inputFile, files);
+        gLogger.info("Will now search {} files with {} workers and parse the ones of suitable format.", files.size(), workers);
+
+        // the executor's own queue is unbounded: a check's future completes a moment before its
+        // thread goes back to the queue, so a bounded queue could reject a freshly submitted file
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        CompletionService<CheckedFile> completion = new ExecutorCompletionService<CheckedFile>(executor);
+        final ThreadLocal<Flint> workerFlint = new ThreadLocal<Flint>() {
+            @Override
+            protected Flint initialValue() {
+                try {
+                    return new Flint(template);
+                } catch (Exception e) {
+                    throw new RuntimeException("could not create a FLint instance for worker " + Thread.currentThread().getName(), e);
+                }
+            }
+        };
+
+        // never have more files in flight than there are workers plus queue slots, so
+        // waiting files and finished results don't pile up
+        int capacity = workers + queueSize;
+        int inFlight = 0;
+        try {
+            for (final File file : files) {
+                if (inFlight >= capacity) {
+                    emit(completion.take(), sink);
+                    inFlight--;
+                }
+                completion.submit(new Callable<CheckedFile>() {
+                    @Override
+                    public CheckedFile call() {
+                        gLogger.debug("Checking: {}", file);
+                        CollectingResultSink results = new CollectingResultSink();
+                        try {
+                            workerFlint.get().check(file, results);
+                        } catch (RuntimeException e) {
+                            gLogger.error("Exception while checking {}: {}", file, e);
+                            // the check may have failed before it got to start the file
+                            List<CheckResult> partial = results.getResults().isEmpty() ?
+                                    new ArrayList<CheckResult>() : results.getResults().get(0);
+                            partial.add(failedResult(file, e));
+                            return new CheckedFile(file, partial);
+                        }
+                        return new CheckedFile(file, results.getResults().get(0));
+                    }
+                });
+                inFlight++;
+                Future<CheckedFile> done;
+                while ((done = completion.poll()) != null) {
+                    emit(done, sink);
+                    inFlight--;
+                }
+            }
+            while (inFlight > 0) {
+                emit(completion.take(), sink);
+                inFlight--;
+            }
+        } catch (InterruptedException e) {
+            gLogger.warn("interrupted while waiting for {} outstanding checks", inFlight);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static CheckResult failedResult(File pFile, Exception pCause) {
+        CheckResult result = new CheckResult(pFile.getName(), "unknown", "");
+        result.add(CheckCategory.incomplete(CHECK_CATEGORY));
+        result.setTime(0L);
+        gLogger.warn("Added validation error category '{}' for {}: {}", CHECK_CATEGORY, pFile, pCause);
+        return result;
+    }
+
+    /**
+     * Hand the results of a finished check to the sink
+     * @param pFuture the finished check
+     * @param pSink the sink to hand the results to
+     * @throws InterruptedException
+     */
+    private static void emit(Future<CheckedFile> pFuture, ResultSink pSink) throws InterruptedException {
+        CheckedFile checked;
+        try {
+            checked = pFuture.get();
+        } catch (ExecutionException e) {
+            // the worker itself could not be set up; there is no file to report on
+            gLogger.error("Exception in checking worker: {}", e.getCause());
+            return;
+        }
+        pSink.startFile(checked.file);
+        try {
+            for (CheckResult result : checked.results) {
+                pSink.add(checked.file, result);
+            }
+        } finally {
+            pSink.endFile(checked.file);
+        }
+    }
+
+    /**
+     * A file together with the results of its check
+     */
+    private static class CheckedFile {
+        private final File file;
+        private final List<CheckResult> results;
+
+        CheckedFile(File pFile, List<CheckResult> pResults) {
+            this.file = pFile;
+            this.results = pResults;
+        }
+    }
+
+    /**
+     * Names the worker threads so they can be told apart in the logs
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "flint-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.checks.CheckResultCodec;
+import uk.bl.dpt.qa.flint.formats.Format;
+import uk.bl.dpt.qa.flint.formats.PolicyAware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A persistent cache of check-results, so that files that haven't changed since the
+ * last run don't have to be checked again.
+ *
+ * A result is stored under the digest of the file's content together with the format's
+ * name and version, the digest of its policy and its pattern filter, so a result is only
+ * reused if the file would be checked in exactly the same way.  The results are kept in
+ * a directory, one file per result, spread over sub-directories by the first two
+ * characters of the key.  A result is written to a temporary file first and then moved
+ * into place, so several processes can share the same cache directory.
+ *
+ * Results of checks that couldn't be completed, i.e. erroneous ones and those of timed
+ * out or crashed checks, are not stored, so the file is checked again next time.
+ *
+ * With a {@link FileManifest}, files that haven't changed since the previous run aren't
+ * even read to get their digest.
+ */
+public class ResultCache {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SUFFIX = ".result";
+
+    // policies are class resources, so each format class only needs digesting once
+    private static final ConcurrentMap<Class<?>, String> policyDigests = new ConcurrentHashMap<Class<?>, String>();
+
+    private final File dir;
+
+    private FileManifest manifest = null;
+
+    /**
+     * Create a new ResultCache
+     * @param pDir directory to keep the results in; it is created if it doesn't exist
+     * @throws IOException if the directory can't be created
+     */
+    public ResultCache(File pDir) throws IOException {
+        if (!pDir.isDirectory() && !pDir.mkdirs()) {
+            throw new IOException("can't create result cache directory " + pDir);
+        }
+        this.dir = pDir;
+    }
+
+    /**
+     * @return the directory the results are kept in
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Use a manifest to remember the files' digests
+     * @param pManifest the manifest, or null to always digest the files
+     */
+    public void setManifest(FileManifest pManifest) {
+        this.manifest = pManifest;
+    }
+
+    /**
+     * @return the manifest in use, or null
+     */
+    public FileManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Get the digest of a file's content.  If the file is in the manifest and hasn't
+     * changed since, the recorded digest is returned; otherwise the file is read and
+     * the manifest updated.
+     * @param pFile the file
+     * @return the hex encoded SHA-1 digest of the file's content
+     * @throws IOException
+     */
+    public String contentDigest(File pFile) throws IOException {
+        FileManifest m = manifest;
+        if (m == null) return digest(pFile);
+        String digest = m.getDigest(pFile);
+        if (digest == null) {
+            long size = pFile.length();
+            long modified = pFile.lastModified();
+            digest = digest(pFile);
+            // don't record a file that was changed while it was read
+            if (size == pFile.length() && modified == pFile.lastModified()) {
+                m.putDigest(pFile, digest);
+            }
+        }
+        return digest;
+    }
+
+    private static String digest(File pFile) throws IOException {
+        MessageDigest md = sha1();
+        InputStream in = new FileInputStream(pFile);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                md.update(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Look up the result of checking a file with a format
+     * @param pFile the file to be checked, used for the result's file name
+     * @param pContentDigest the digest of the file's content, see {@link #contentDigest(File)}
+     * @param pFormat the format to check the file with
+     * @return the stored result, or null if there is none
+     */
+    public CheckResult get(File pFile, String pContentDigest, Format pFormat) {
+        File stored = file(key(pContentDigest, pFormat));
+        if (!stored.isFile()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stored)));
+            try {
+                return CheckResultCodec.read(in, pFile.getName());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a broken entry is as good as none, it is replaced after the next check
+            LOGGER.warn("can't read cached result {}: {}", stored, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the result of checking a file with a format, unless it is the result of a
+     * check that couldn't be completed.
+     * @param pContentDigest the digest of the checked file's content, see {@link #contentDigest(File)}
+     * @param pFormat the format the file was checked with
+     * @param pResult the result of the check
+     * @return whether the result was stored
+     */
+    public boolean put(String pContentDigest, Format pFormat, CheckResult pResult) {
+        if (!isCacheable(pResult)) {
+            LOGGER.debug("not caching incomplete result {}", pResult);
+            return false;
+        }
+        File stored = file(key(pContentDigest, pFormat));
+        File parent = stored.getParentFile();
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("can't create " + parent);
+            }
+            File tmp = File.createTempFile(stored.getName(), ".tmp", parent);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    CheckResultCodec.write(pResult, out);
+                } finally {
+                    out.close();
+                }
+                try {
+                    Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                if (tmp.exists()) tmp.delete();
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("can't cache result for {}: {}", pResult.getFilename(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Find out whether a result is worth keeping: erroneous results and those with a
+     * category standing in for checks that timed out or crashed are not.
+     * @param pResult the result
+     * @return whether the result may be cached
+     */
+    static boolean isCacheable(CheckResult pResult) {
+        return !pResult.isErroneous() && !pResult.isIncomplete();
+    }
+
+    private String key(String pContentDigest, Format pFormat) {
+        MessageDigest md = sha1();
+        update(md, pContentDigest);
+        update(md, pFormat.getFormatName());
+        update(md, pFormat.getVersion());
+        if (pFormat instanceof PolicyAware) {
+            update(md, policyDigest((PolicyAware) pFormat));
+            Set<String> filter = ((PolicyAware) pFormat).getPatternFilter();
+            if (filter == null) {
+                // no filter runs every pattern, an empty one runs none
+                update(md, "*");
+            } else {
+                update(md, String.valueOf(filter.size()));
+                List<String> patterns = new ArrayList<String>(filter);
+                Collections.sort(patterns);
+                for (String pattern : patterns) {
+                    update(md, pattern);
+                }
+            }
+        }
+        return hex(md.digest());
+    }
+
+    private File file(String pKey) {
+        return new File(new File(dir, pKey.substring(0, 2)), pKey.substring(2) + SUFFIX);
+    }
+
+    private static String policyDigest(PolicyAware pFormat) {
+        String digest = policyDigests.get(pFormat.getClass());
+        if (digest == null) {
+            MessageDigest md = sha1();
+            try {
+                InputStream policy = pFormat.getPolicy();
+                if (policy != null) {
+                    try {
+                        byte[] buf = new byte[8 * 1024];
+                        int read;
+                        while ((read = policy.read(buf)) != -1) {
+                            md.update(buf, 0, read);
+                        }
+                    } finally {
+                        policy.close();
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("can't read the policy of " + pFormat.getClass().getName(), e);
+            }
+            digest = hex(md.digest());
+            policyDigests.putIfAbsent(pFormat.getClass(), digest);
+        }
+        return digest;
+    }
+
+    private static void update(MessageDigest pDigest, String pPart) {
+        if (pPart != null) pDigest.update(pPart.getBytes(UTF8));
+        // separate the parts, and null from the empty string
+        pDigest.update((byte) (pPart == null ? 1 : 0));
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] pBytes) {
+        StringBuilder sb = new StringBuilder(pBytes.length * 2);
+        for (byte b : pBytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
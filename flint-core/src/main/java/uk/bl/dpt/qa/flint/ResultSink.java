@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.File;
+
+/**
+ * Receives check-results as soon as they are produced, instead of having them collected
+ * for a whole run.
+ *
+ * For every checked file {@link #startFile(java.io.File)} is called first, then
+ * {@link #add(java.io.File, uk.bl.dpt.qa.flint.checks.CheckResult)} once for every format
+ * that checked the file, and finally {@link #endFile(java.io.File)}. The calls for one
+ * file are never interleaved with those of another file.
+ */
+public interface ResultSink {
+
+    /**
+     * Called before any result of a file is added
+     * @param pFile the file that is about to be checked
+     */
+    public void startFile(File pFile);
+
+    /**
+     * Called for each result of a file as soon as it is available
+     * @param pFile the file that has been checked
+     * @param pResult the result of one format's checks
+     */
+    public void add(File pFile, CheckResult pResult);
+
+    /**
+     * Called after all results of a file have been added
+     * @param pFile the file that has been checked
+     */
+    public void endFile(File pFile);
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * A {@link ResultSink} that writes the results of each file as xml, in the same form as
+ * {@link Flint#printResults(java.util.List, java.io.PrintWriter)}, and flushes the output
+ * after every file, so that results already written survive a crash later in the run.
+ */
+public class XmlResultSink implements ResultSink {
+
+    private final PrintWriter out;
+
+    /**
+     * Create a new XmlResultSink
+     * @param pOut PrintWriter to send output to
+     */
+    public XmlResultSink(PrintWriter pOut) {
+        this.out = pOut;
+    }
+
+    @Override
+    public void startFile(File pFile) {
+        out.println("<?xml version='1.0' encoding='utf-8'?>");
+        out.println("<flint>");
+    }
+
+    @Override
+    public void add(File pFile, CheckResult pResult) {
+        pResult.toXML(out, "    ", "    ");
+    }
+
+    @Override
+    public void endFile(File pFile) {
+        out.println("</flint>");
+        out.flush();
+    }
+}
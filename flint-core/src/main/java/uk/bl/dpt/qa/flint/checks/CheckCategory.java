@@ -39,14 +39,47 @@ public class CheckCategory {
 
     private String name;
     private LinkedHashMap<String, CheckCheck> checks;
+    private final boolean incomplete;
 
     /**
      * Create a CheckCategory object, a container for a set of CheckCheck objects
      * @param name the name of this category
      */
     public CheckCategory(String name) {
+        this(name, false);
+    }
+
+    /**
+     * Create a CheckCategory object, a container for a set of CheckCheck objects
+     * @param name the name of this category
+     * @param incomplete whether it stands in for checks that couldn't be run to completion
+     */
+    CheckCategory(String name, boolean incomplete) {
         this.name = name;
         this.checks = new LinkedHashMap<String, CheckCheck>();
+        this.incomplete = incomplete;
+    }
+
+    /**
+     * Create a failed CheckCategory that stands in for checks that couldn't be run
+     * to completion, e.g. because they timed out or crashed.  It holds a single failed
+     * check of the same name.
+     * @param name the name of the category
+     * @return the new CheckCategory
+     */
+    public static CheckCategory incomplete(String name) {
+        CheckCategory cc = new CheckCategory(name, true);
+        cc.add(new CheckCheck(name, false, null));
+        return cc;
+    }
+
+    /**
+     * Find out whether this CheckCategory stands in for checks that couldn't be run
+     * to completion
+     * @return true if this category was created by {@link #incomplete(String)}
+     */
+    public boolean isIncomplete() {
+        return incomplete;
     }
 
     /**
@@ -127,6 +160,13 @@ public class CheckCategory {
         return this.name;
     }
 
+    /**
+     * @return the checks of this category by name
+     */
+    LinkedHashMap<String, CheckCheck> getChecks() {
+        return this.checks;
+    }
+
     public String toString() {
         return this.name + ": " + getResult();
     }
@@ -135,6 +135,18 @@ public class CheckResult {
     	return this.categories.isEmpty();	// true if empty, otherwise false
     }
 
+    /**
+     * Find out if any CheckCategory in this CheckResult stands in for checks that
+     * couldn't be run to completion, see {@link CheckCategory#incomplete(String)}
+     * @return true if a CheckCategory within this CheckResult is incomplete
+     */
+    public boolean isIncomplete() {
+        for (CheckCategory cc : this.categories.values()) {
+            if (cc != null && cc.isIncomplete()) return true;
+        }
+        return false;
+    }
+
     /**
      * A String representation of the status of this CheckResult
      * @return "error", "passed" or "failed"
@@ -240,5 +252,19 @@ public class CheckResult {
     public void setTime(Long time) {
         this.time = time;
     }
+
+    /**
+     * @return the time taken, or null if not set
+     */
+    Long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the categories by name, expected categories that haven't been added have a null value
+     */
+    LinkedHashMap<String, CheckCategory> getCategories() {
+        return this.categories;
+    }
     
 }
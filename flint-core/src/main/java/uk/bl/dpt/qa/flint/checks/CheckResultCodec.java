@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.checks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes and reads {@link CheckResult}s in a compact binary form, to hand them
+ * between processes or keep them on disk.
+ *
+ * Everything that makes up a result is kept: the file name, format, version and
+ * time taken, and the categories in order, including expected categories that
+ * never got a value, and whether a category stands in for checks that couldn't be
+ * run to completion.
+ */
+public class CheckResultCodec {
+
+    private static final int VERSION = 2;
+    // without the incomplete flag of the categories
+    private static final int VERSION_1 = 1;
+
+    private CheckResultCodec() {}
+
+    /**
+     * Write a check result
+     * @param pResult the result to write
+     * @param pOut where to write it to
+     * @throws IOException
+     */
+    public static void write(CheckResult pResult, DataOutput pOut) throws IOException {
+        pOut.writeByte(VERSION);
+        writeString(pResult.getFilename(), pOut);
+        writeString(pResult.getFormat(), pOut);
+        writeString(pResult.getVersion(), pOut);
+        Long time = pResult.getTime();
+        pOut.writeBoolean(time != null);
+        if (time != null) pOut.writeLong(time);
+        pOut.writeInt(pResult.getCategories().size());
+        for (Map.Entry<String, CheckCategory> entry : pResult.getCategories().entrySet()) {
+            writeString(entry.getKey(), pOut);
+            CheckCategory cc = entry.getValue();
+            pOut.writeBoolean(cc != null);
+            if (cc == null) continue;
+            pOut.writeBoolean(cc.isIncomplete());
+            pOut.writeInt(cc.getChecks().size());
+            for (CheckCheck check : cc.getChecks().values()) {
+                writeString(check.getName(), pOut);
+                // 0: error, 1: failed, 2: passed
+                pOut.writeByte(check.isHappy() == null ? 0 : check.isHappy() ? 2 : 1);
+                Integer errorCount = check.getErrorCount();
+                pOut.writeBoolean(errorCount != null);
+                if (errorCount != null) pOut.writeInt(errorCount);
+            }
+        }
+    }
+
+    /**
+     * Read a check result
+     * @param pIn where to read it from
+     * @return the result read
+     * @throws IOException if the input is broken or was written by an unknown version
+     */
+    public static CheckResult read(DataInput pIn) throws IOException {
+        return read(pIn, null);
+    }
+
+    /**
+     * Read a check result that was written for a file with the same content, but
+     * possibly a different name
+     * @param pIn where to read it from
+     * @param pFilename the file name to give the result, or null to keep the one written
+     * @return the result read
+     * @throws IOException if the input is broken or was written by an unknown version
+     */
+    public static CheckResult read(DataInput pIn, String pFilename) throws IOException {
+        int version = pIn.readUnsignedByte();
+        if (version != VERSION && version != VERSION_1) {
+            throw new IOException("unknown check-result encoding version " + version);
+        }
+        String filename = readString(pIn);
+        if (pFilename != null) filename = pFilename;
+        CheckResult result = new CheckResult(filename, readString(pIn), readString(pIn));
+        if (pIn.readBoolean()) result.setTime(pIn.readLong());
+        int categories = pIn.readInt();
+        for (int i = 0; i < categories; i++) {
+            String name = readString(pIn);
+            if (!pIn.readBoolean()) {
+                result.getCategories().put(name, null);
+                continue;
+            }
+            CheckCategory cc = new CheckCategory(name, version != VERSION_1 && pIn.readBoolean());
+            int checks = pIn.readInt();
+            for (int j = 0; j < checks; j++) {
+                String checkName = readString(pIn);
+                byte state = pIn.readByte();
+                Integer errorCount = pIn.readBoolean() ? pIn.readInt() : null;
+                cc.add(new CheckCheck(checkName, state == 0 ? null : state == 2, errorCount));
+            }
+            result.getCategories().put(name, cc);
+        }
+        return result;
+    }
+
+    /**
+     * Write a string that may be null
+     * @param pString the string
+     * @param pOut where to write it to
+     * @throws IOException
+     */
+    public static void writeString(String pString, DataOutput pOut) throws IOException {
+        pOut.writeBoolean(pString != null);
+        if (pString != null) pOut.writeUTF(pString);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(String, DataOutput)}
+     * @param pIn where to read it from
+     * @return the string, may be null
+     * @throws IOException
+     */
+    public static String readString(DataInput pIn) throws IOException {
+        return pIn.readBoolean() ? pIn.readUTF() : null;
+    }
+}
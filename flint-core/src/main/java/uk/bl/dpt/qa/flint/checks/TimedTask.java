@@ -50,5 +50,15 @@ public abstract class TimedTask implements Callable<LinkedHashMap<String, CheckC
     public void setContentFile(File contentFile) {
         this.contentFile = contentFile;
     }
+
+    /**
+     * Called by {@link uk.bl.dpt.qa.flint.checks.TimedValidation} from another thread when
+     * the task has timed out, after it has been interrupted.  Most parsers don't react to
+     * interrupts, so tasks should release whatever they have opened here, e.g. close the
+     * documents they are parsing, to make the parser fail and the thread return.
+     * Does nothing by default.
+     */
+    public void abort() {
+    }
     
 }
\ No newline at end of file
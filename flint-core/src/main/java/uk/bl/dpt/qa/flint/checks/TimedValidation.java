@@ -20,12 +20,25 @@ package uk.bl.dpt.qa.flint.checks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A helper class to run timed validations using Callables inheriting from {@link uk.bl.dpt.qa.flint.checks.TimedTask}.
@@ -33,12 +46,50 @@ import java.util.concurrent.TimeUnit;
  * Every task comes with a timeout[seconds], if this is reached, or another Exception
  * has occurred, the task is killed and a  {@link uk.bl.dpt.qa.flint.checks.CheckCategory}
  * is being created with the task's name as name.
+ *
+ * The tasks run on a pool of threads shared by all validations, which grows with the
+ * number of tasks running at the same time, up to -Dflint.check.threads (256 by default),
+ * and shrinks again when they are idle.  Tasks beyond that wait for a free thread, their
+ * timeouts counting all the same.
+ *
+ * A task that times out is interrupted and asked to {@link TimedTask#abort()}.  If its
+ * thread is still running after a grace period it is counted as a runaway; with
+ * {@link #setStopRunawayTasks(boolean)} (or -Dflint.timeout.stop=true) the thread is
+ * then stopped, so that it can't keep burning CPU and holding on to memory.  Stopping
+ * a thread can leave the objects it was working on in an inconsistent state, which is
+ * why this is off by default; the threads left behind are counted and logged instead.
+ *
+ * Tasks of one file may share a resource, e.g. the file's parsed documents, that is
+ * only closed once all of them have finished or been aborted, see
+ * {@link #validateAll(Collection, File, Closeable)}.
  */
 public class TimedValidation {
 
     private static Logger LOGGER = LoggerFactory.getLogger(TimedValidation.class);
 
-    protected static ExecutorService executor;
+    private static final int MAX_THREADS = Integer.getInteger("flint.check.threads", 256);
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new CheckThreadFactory());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "flint-check-reaper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static volatile long gracePeriod = Long.getLong("flint.timeout.grace", 10L);
+    private static volatile boolean stopRunawayTasks = Boolean.getBoolean("flint.timeout.stop");
+    private static final AtomicInteger runaways = new AtomicInteger();
+    // runaways whose threads are still running
+    private static final AtomicInteger orphans = new AtomicInteger();
 
     private TimedValidation(){}
 
@@ -49,28 +100,279 @@ public class TimedValidation {
      * @return output from the TimedTask
      */
     public static LinkedHashMap<String, CheckCategory> validate(TimedTask task, File contentFile) {
-        executor = Executors.newSingleThreadExecutor();
-        task.setContentFile(contentFile);
+        return validateAll(Collections.singletonList(task), contentFile);
+    }
+
+    /**
+     * Run timed validations of several TimedTasks against a file at the same time.
+     *
+     * All timeouts count from the moment the tasks are submitted, so the whole call
+     * takes as long as the slowest task, or its timeout, rather than the sum of them.
+     * The outputs are merged in the order of the tasks.
+     *
+     * @param tasks tasks to run
+     * @param contentFile file to run against the TimedTasks
+     * @return merged output from the TimedTasks
+     */
+    public static LinkedHashMap<String, CheckCategory> validateAll(Collection<? extends TimedTask> tasks, File contentFile) {
+        return validateAll(tasks, contentFile, null);
+    }
+
+    /**
+     * Run timed validations of several TimedTasks against a file at the same time, see
+     * {@link #validateAll(Collection, File)}, and close a resource the tasks share once
+     * every one of them has finished or been aborted.
+     *
+     * A task that times out may keep running for a while; the shared resource is then
+     * only closed when the other tasks are done with it, which makes the timed-out task
+     * fail if it is still using it.  The resource is closed by the time this returns.
+     *
+     * @param tasks tasks to run
+     * @param contentFile file to run against the TimedTasks
+     * @param shared resource shared by the tasks, or null
+     * @return merged output from the TimedTasks
+     */
+    public static LinkedHashMap<String, CheckCategory> validateAll(Collection<? extends TimedTask> tasks, File contentFile,
+                                                                   Closeable shared) {
+        long start = System.nanoTime();
+        SharedResource resource = new SharedResource(shared, tasks.size());
+        List<TrackedTask> tracked = new ArrayList<TrackedTask>();
+        List<Future<LinkedHashMap<String, CheckCategory>>> futures = new ArrayList<Future<LinkedHashMap<String, CheckCategory>>>();
+        for (TimedTask task : tasks) {
+            task.setContentFile(contentFile);
+            LOGGER.info("calling time-limited validation task {}, timeout: {} seconds", task.name, task.timeout);
+            TrackedTask t = new TrackedTask(task, resource);
+            tracked.add(t);
+            futures.add(executor.submit(t));
+        }
+
         LinkedHashMap<String, CheckCategory> cMap = new LinkedHashMap<String, CheckCategory>();
-        Future<LinkedHashMap<String, CheckCategory>> future = executor.submit(task);
-        LOGGER.info("calling time-limited validation task {}, timeout: {} seconds", task.name, task.timeout);
-        try {
-            cMap.putAll(future.get(task.timeout, TimeUnit.SECONDS));
-        } catch (Exception e) {
-            LOGGER.error("Exception during validation: {}", e);
-            CheckCategory cc = new CheckCategory(task.name);
-            cc.add(new CheckCheck(task.name, false, null));
-            cMap.put(task.name, cc);
-            LOGGER.warn("Added validation error category '{}'", task.name);
-        } catch (StackOverflowError e) {
-            LOGGER.error("StackOverflowError during validation: {}", e);
-            CheckCategory cc = new CheckCategory(task.name);
-            cc.add(new CheckCheck(task.name, false, null));
-            cMap.put(task.name, cc);
-            LOGGER.warn("Added validation error category '{}'", task.name);
+        Iterator<Future<LinkedHashMap<String, CheckCategory>>> it = futures.iterator();
+        Iterator<TrackedTask> tt = tracked.iterator();
+        for (TimedTask task : tasks) {
+            Future<LinkedHashMap<String, CheckCategory>> future = it.next();
+            TrackedTask t = tt.next();
+            long remaining = start + TimeUnit.SECONDS.toNanos(task.timeout) - System.nanoTime();
+            try {
+                cMap.putAll(future.get(Math.max(0L, remaining), TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted during validation: {}", e);
+                addErrorCategory(cMap, task);
+                cancel(future, t);
+                // keep the interrupt for the caller; the remaining tasks will fail the same way
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOGGER.error("Exception during validation: {}", e);
+                addErrorCategory(cMap, task);
+                cancel(future, t);
+            } catch (StackOverflowError e) {
+                LOGGER.error("StackOverflowError during validation: {}", e);
+                addErrorCategory(cMap, task);
+                cancel(future, t);
+            }
         }
-        executor.shutdownNow();
         return cMap;
     }
 
+    /**
+     * Set whether threads of timed-out tasks that are still running after the grace period
+     * are stopped.
+     * @param pStop true to stop them
+     */
+    public static void setStopRunawayTasks(boolean pStop) {
+        stopRunawayTasks = pStop;
+    }
+
+    /**
+     * Set how long a timed-out task has to finish after it was aborted before it counts
+     * as a runaway.
+     * @param pSeconds the grace period [s]
+     */
+    public static void setGracePeriod(long pSeconds) {
+        gracePeriod = pSeconds;
+    }
+
+    /**
+     * @return the number of timed-out tasks that didn't finish within the grace period so far
+     */
+    public static int getRunawayCount() {
+        return runaways.get();
+    }
+
+    /**
+     * @return the number of threads still running a task that didn't finish within the grace period
+     */
+    public static int getOrphanedThreadCount() {
+        return orphans.get();
+    }
+
+    /**
+     * Interrupt and abort a task that has failed or timed out, and have the reaper
+     * look after it in case it keeps on running.
+     */
+    private static void cancel(Future<?> future, final TrackedTask t) {
+        future.cancel(true);
+        if (!t.isRunning()) return;
+        try {
+            t.task.abort();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Exception while aborting task {}: {}", t.task.name, e);
+        }
+        // the task is done with whatever it shares with the other tasks of the file
+        t.release();
+        reaper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = t.getThread();
+                if (thread == null) return;
+                int count = runaways.incrementAndGet();
+                if (stopRunawayTasks) {
+                    if (!t.stop()) return;
+                    LOGGER.warn("task {} on {} was still running after being aborted; stopped thread {}",
+                            t.task.name, t.task.contentFile, thread.getName());
+                } else if (t.orphan()) {
+                    LOGGER.warn("task {} on {} is still running after being aborted, leaving thread {} behind " +
+                            "({} runaways so far, {} of at most {} check threads left behind)",
+                            t.task.name, t.task.contentFile, thread.getName(), count, orphans.get(), MAX_THREADS);
+                }
+            }
+        }, gracePeriod, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void stop(Thread thread) {
+        try {
+            thread.stop();
+        } catch (UnsupportedOperationException e) {
+            // newer JVMs don't support stopping threads any more
+            LOGGER.error("can't stop thread {}: {}", thread.getName(), e);
+        } catch (SecurityException e) {
+            LOGGER.error("can't stop thread {}: {}", thread.getName(), e);
+        }
+    }
+
+    private static void addErrorCategory(LinkedHashMap<String, CheckCategory> cMap, TimedTask task) {
+        cMap.put(task.name, CheckCategory.incomplete(task.name));
+        LOGGER.warn("Added validation error category '{}'", task.name);
+    }
+
+    /**
+     * A resource shared by the tasks of a file, closed once the last of them has let go of it
+     */
+    private static class SharedResource {
+        private final Closeable resource;
+        private final AtomicInteger users;
+
+        SharedResource(Closeable pResource, int pUsers) {
+            this.resource = pResource;
+            this.users = new AtomicInteger(pUsers);
+        }
+
+        void release() {
+            if (users.decrementAndGet() != 0 || resource == null) return;
+            try {
+                resource.close();
+            } catch (IOException e) {
+                LOGGER.warn("can't close {}: {}", resource, e);
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the thread a task is running on.  The thread is bound and unbound
+     * under a lock, and is only stopped while holding it, so a pooled thread that has
+     * finished the task and moved on to another one can't be stopped by mistake.
+     */
+    private static class TrackedTask implements Callable<LinkedHashMap<String, CheckCategory>> {
+        private final TimedTask task;
+        private final SharedResource resource;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final Object lock = new Object();
+        private volatile Thread thread;
+        private volatile boolean done = false;
+        private boolean orphaned = false;
+
+        TrackedTask(TimedTask pTask, SharedResource pResource) {
+            this.task = pTask;
+            this.resource = pResource;
+        }
+
+        @Override
+        public LinkedHashMap<String, CheckCategory> call() throws Exception {
+            synchronized (lock) {
+                thread = Thread.currentThread();
+            }
+            try {
+                return task.call();
+            } finally {
+                synchronized (lock) {
+                    thread = null;
+                    done = true;
+                    if (orphaned) orphans.decrementAndGet();
+                }
+                release();
+            }
+        }
+
+        /**
+         * Let go of the shared resource, once, when the task has finished or been aborted
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) resource.release();
+        }
+
+        /**
+         * Count the task's thread as left behind, as long as it is still running the task
+         * @return whether the thread is still running the task
+         */
+        boolean orphan() {
+            synchronized (lock) {
+                if (thread == null) return false;
+                orphaned = true;
+                orphans.incrementAndGet();
+                return true;
+            }
+        }
+
+        /**
+         * Stop the thread if it is still running this task
+         * @return whether the thread was stopped
+         */
+        boolean stop() {
+            synchronized (lock) {
+                if (thread == null) return false;
+                TimedValidation.stop(thread);
+                return true;
+            }
+        }
+
+        /**
+         * @return true unless the task has finished; a task that hasn't started yet counts as running
+         */
+        boolean isRunning() {
+            return !done;
+        }
+
+        /**
+         * @return the thread the task is running on, or null if it isn't running
+         */
+        Thread getThread() {
+            return thread;
+        }
+    }
+
+    /**
+     * Names the check threads and doesn't let them keep the JVM alive
+     */
+    private static class CheckThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "flint-check-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
 }
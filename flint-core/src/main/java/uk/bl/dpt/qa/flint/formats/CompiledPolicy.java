@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.formats;
+
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.utils.schematron.Validator;
+import uk.bl.dpt.utils.schematron.ValidatorFactory;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A schematron policy compiled by the dptutils {@link ValidatorFactory} for one
+ * pattern filter.
+ *
+ * Compiling a policy is expensive compared to validating a report against it, so
+ * compiled policies are kept for the lifetime of the JVM, keyed by the digest of
+ * the policy and the pattern filter, together with the policy's assert-pattern map.
+ * A validator can only be used by one thread at a time, so every compiled policy
+ * keeps a pool of validators that are handed out to the validating threads and
+ * returned afterwards; a validator's report only covers its latest validation.
+ */
+public final class CompiledPolicy {
+
+    private static final ValidatorFactory valFac = new ValidatorFactory();
+
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    private static final ConcurrentMap<Key, CompiledPolicy> cache = new ConcurrentHashMap<Key, CompiledPolicy>();
+
+    private final byte[] policy;
+    private final String systemId;
+    private final Set<String> filter;
+    private final Map<String, String> assertPatternMap;
+    private final Queue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+
+    private CompiledPolicy(byte[] pPolicy, String pSystemId, Set<String> pFilter) throws Exception {
+        this.policy = pPolicy;
+        this.systemId = pSystemId;
+        this.filter = pFilter;
+        this.assertPatternMap = Collections.unmodifiableMap(
+                new LinkedHashMap<String, String>(valFac.getAssertPatternMap(source(), filter)));
+        validators.add(valFac.newValidator(source(), filter));
+    }
+
+    /**
+     * Get the compiled form of a policy, compiling it if it hasn't been seen before
+     * with the same pattern filter.  The policy's stream is read and closed.
+     * @param pSchema the schematron policy
+     * @param pFilter the pattern filter, may be null
+     * @return the compiled policy
+     * @throws Exception
+     */
+    static CompiledPolicy get(StreamSource pSchema, Set<String> pFilter) throws Exception {
+        byte[] bytes = read(pSchema);
+        Set<String> filter = (pFilter == null) ? null : Collections.unmodifiableSet(new HashSet<String>(pFilter));
+        Key key = new Key(digest(bytes), filter);
+        CompiledPolicy compiled = cache.get(key);
+        if (compiled == null) {
+            // two threads may compile the same policy at the same time, only one result is kept
+            compiled = new CompiledPolicy(bytes, pSchema.getSystemId(), filter);
+            CompiledPolicy existing = cache.putIfAbsent(key, compiled);
+            if (existing != null) compiled = existing;
+        }
+        return compiled;
+    }
+
+    /**
+     * Validates a report against the policy.  The dptutils validator reads the report
+     * from a stream, so a report given as any other kind of Source, e.g. a document, is
+     * written to memory first, without indentation.
+     * @param pResultToBeValidated the report to validate
+     * @return the check categories of the policy, with the failed assertions and their frequency
+     * @throws Exception
+     */
+    public LinkedHashMap<String, CheckCategory> validate(Source pResultToBeValidated) throws Exception {
+        StreamSource report = (pResultToBeValidated instanceof StreamSource) ?
+                (StreamSource) pResultToBeValidated : serialise(pResultToBeValidated);
+        Validator validator = validators.poll();
+        if (validator == null) {
+            validator = valFac.newValidator(source(), filter);
+        }
+        LinkedHashMap<String, ? extends Map<String, Integer>> results;
+        try {
+            validator.validate(report);
+            results = validator.getReport();
+        } catch (Exception e) {
+            // don't hand a validator back that might have been left in a bad state
+            validator = null;
+            throw e;
+        } finally {
+            if (validator != null) validators.add(validator);
+        }
+
+        LinkedHashMap<String, CheckCategory> ccMap = new LinkedHashMap<String, CheckCategory>();
+        for (Map.Entry<String, String> test : assertPatternMap.entrySet()) {
+            CheckCategory cc;
+            if (ccMap.containsKey(test.getValue())) {
+                cc = ccMap.get(test.getValue());
+            } else {
+                cc = new CheckCategory(test.getValue());
+            }
+            boolean passed = true;
+            int errorCount = 0;
+            if (results.get(test.getValue()).containsKey(test.getKey())) {
+                passed = false;
+                errorCount = results.get(test.getValue()).get(test.getKey());
+            }
+            cc.add(new CheckCheck(test.getKey(), passed, errorCount));
+            ccMap.put(cc.getName(), cc);
+        }
+        return ccMap;
+    }
+
+    /**
+     * @return a fresh stream source over the policy
+     */
+    private StreamSource source() {
+        StreamSource source = new StreamSource(new ByteArrayInputStream(policy));
+        // keep the system id, so that relative references in the policy still resolve
+        source.setSystemId(systemId);
+        return source;
+    }
+
+    private static StreamSource serialise(Source pSource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transformer identity;
+        synchronized (transformerFactory) {
+            identity = transformerFactory.newTransformer();
+        }
+        identity.transform(pSource, new StreamResult(out));
+        return new StreamSource(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static byte[] read(StreamSource pSchema) throws IOException {
+        InputStream in = pSchema.getInputStream();
+        if (in == null && pSchema.getSystemId() != null) {
+            in = new URL(pSchema.getSystemId()).openStream();
+        }
+        if (in == null) {
+            throw new IllegalArgumentException("policy has to be given as an input stream or system id");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] digest(byte[] pBytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(pBytes);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cache key: policy digest plus pattern filter
+     */
+    private static final class Key {
+        private final byte[] digest;
+        private final Set<String> filter;
+
+        Key(byte[] pDigest, Set<String> pFilter) {
+            this.digest = pDigest;
+            this.filter = pFilter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return Arrays.equals(digest, other.digest) &&
+                    (filter == null ? other.filter == null : filter.equals(other.filter));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(digest) + (filter == null ? 0 : filter.hashCode());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.formats;
+
+import java.util.Collection;
+
+/**
+ * A format that decides whether it can check a file by its mimetype and file name
+ * extension alone, i.e. its {@link Format#canCheck(java.io.File, String)} is true
+ * exactly if the mimetype is one of its {@link Format#acceptedMimeTypes()} or the
+ * file name ends with one of its {@link #acceptedExtensions()}.
+ *
+ * FLint routes files to such formats with a table lookup instead of asking each
+ * format in turn.
+ */
+public interface FileTypeAware {
+
+    /**
+     * @return the lower case file name extensions, without the dot, of files this
+     * format checks whatever their mimetype
+     */
+    public Collection<String> acceptedExtensions();
+
+}
@@ -21,17 +21,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import uk.bl.dpt.qa.flint.checks.CheckCategory;
-import uk.bl.dpt.qa.flint.checks.CheckCheck;
-import uk.bl.dpt.utils.schematron.Validator;
 import uk.bl.dpt.utils.schematron.ValidatorFactory;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -46,14 +48,19 @@ public abstract class PolicyAware {
     protected Logger logger;
 
     protected Set<String> patternFilter = null;
-    private static ValidatorFactory valFac;
+    private static final ValidatorFactory valFac = new ValidatorFactory();
+
+    // all category names for the current pattern filter, computed on first use
+    private Collection<String> categoryNames = null;
+
+    // the policy compiled for the current pattern filter, resolved on first use
+    private CompiledPolicy compiledPolicy = null;
 
     /**
      * Create a new PolicyAware object
      */
     public PolicyAware() {
         logger = LoggerFactory.getLogger(getClass());
-        valFac = new ValidatorFactory();
     }
 
     /**
@@ -66,33 +73,36 @@ public abstract class PolicyAware {
      * Validates the xml-report of the format-specific third-party validator using
      * the policy schematron file.
      *
-     * @param resultToBeValidated a stream source representing the output of a third-party
+     * The policy is only compiled the first time it is used with a pattern filter;
+     * later calls with the same policy and filter reuse the compiled policy.
+     *
+     * @param resultToBeValidated a source representing the output of a third-party
      *                             validation process
      * @return a report with resulting assertion errors and their frequency.
      * @throws Exception 
      */
-    public static LinkedHashMap<String, CheckCategory> policyValidationResult(StreamSource resultToBeValidated, StreamSource schema, Set<String> pFilter) throws Exception {
-        LinkedHashMap<String, CheckCategory> ccMap = new LinkedHashMap<String, CheckCategory>();
-        Validator validator = valFac.newValidator(schema, pFilter);
-        validator.validate(resultToBeValidated);
-        LinkedHashMap<String, ? extends Map<String, Integer>> report = validator.getReport();
-        for (Map.Entry<String, String> test : valFac.getAssertPatternMap(schema, pFilter).entrySet()) {
-            CheckCategory cc;
-            if (ccMap.containsKey(test.getValue())) {
-                cc = ccMap.get(test.getValue());
-            } else {
-                cc = new CheckCategory(test.getValue());
-            }
-            boolean passed = true;
-            int errorCount = 0;
-            if (report.get(test.getValue()).containsKey(test.getKey())) {
-                passed = false;
-                errorCount = report.get(test.getValue()).get(test.getKey());
+    public static LinkedHashMap<String, CheckCategory> policyValidationResult(Source resultToBeValidated, StreamSource schema, Set<String> pFilter) throws Exception {
+        return CompiledPolicy.get(schema, pFilter).validate(resultToBeValidated);
+    }
+
+    /**
+     * Gets the policy compiled for the current pattern filter.  The policy is only read
+     * on the first call and kept until the pattern filter is changed, so the checks of
+     * every file can validate against it straight away.
+     *
+     * @return the compiled policy
+     * @throws Exception
+     */
+    public synchronized CompiledPolicy getCompiledPolicy() throws Exception {
+        if (compiledPolicy == null) {
+            InputStream policy = getPolicy();
+            try {
+                compiledPolicy = CompiledPolicy.get(new StreamSource(policy), patternFilter);
+            } finally {
+                if (policy != null) policy.close();
             }
-            cc.add(new CheckCheck(test.getKey(), passed, errorCount));
-            ccMap.put(cc.getName(), cc);
         }
-        return ccMap;
+        return compiledPolicy;
     }
 
     /**
@@ -101,13 +111,21 @@ public abstract class PolicyAware {
      *
      * @throws IOException
      */
-    public void setPatternFilter(String policyProperties) throws IOException {
+    public synchronized void setPatternFilter(String policyProperties) throws IOException {
         if (policyProperties == null) {
             logger.debug("no policy properties set. PatternFilter will not be used then.");
         } else {
             Properties props = new Properties();
-            props.load(new FileInputStream(policyProperties));
+            InputStream in = new FileInputStream(policyProperties);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
             logger.debug("loading policy properties file: {}", policyProperties);
+            if (patternFilter == null) {
+                patternFilter = new HashSet<String>();
+            }
             for (Map.Entry<Object, Object> prop : props.entrySet()) {
                 if (Boolean.parseBoolean((String) prop.getValue())) {
                     logger.debug("adding pattern: {}", prop.getKey());
@@ -116,6 +134,8 @@ public abstract class PolicyAware {
                     logger.debug("found a de-activated pattern: {}", prop.getKey());
                 }
             }
+            categoryNames = null;
+            compiledPolicy = null;
         }
     }
 
@@ -125,8 +145,19 @@ public abstract class PolicyAware {
      * @param pFilter a set of strings that represent patterns to be included
      *                      in following operations.
      */
-    public void setPatternFilter(Set<String> pFilter) {
+    public synchronized void setPatternFilter(Set<String> pFilter) {
         patternFilter = pFilter;
+        categoryNames = null;
+        compiledPolicy = null;
+    }
+
+    /**
+     * Get the patternFilter currently in use.
+     *
+     * @return the set of patterns to be included, or null if no filter is set
+     */
+    public Set<String> getPatternFilter() {
+        return patternFilter;
     }
 
     /**
@@ -141,4 +172,34 @@ public abstract class PolicyAware {
     public Collection<String> requestPolicyPatternNames(StreamSource schema) throws ParserConfigurationException, SAXException, XPathExpressionException, IOException {
         return valFac.getPatternNames(schema, patternFilter);
     }
+
+    /**
+     * Gets all category names of this format: the fixed ones, the one reporting a failed
+     * policy validation and the names of the policy's patterns.
+     *
+     * Reading the pattern names means parsing the policy, so the names are only computed
+     * on the first call and kept until the pattern filter is changed.
+     *
+     * @param fixedCategoryNames the names of the fixed categories
+     * @param policyValidationCategory the name of the category reporting a failed policy validation
+     * @return an unmodifiable collection of all category names
+     * @throws Exception
+     */
+    protected synchronized Collection<String> policyCategoryNames(Collection<String> fixedCategoryNames,
+                                                                  String policyValidationCategory) throws Exception {
+        if (categoryNames == null) {
+            Collection<String> cats = new ArrayList<String>();
+            cats.addAll(fixedCategoryNames);
+            // add a potential policy validation error to all category names
+            cats.add(policyValidationCategory);
+            InputStream policy = getPolicy();
+            try {
+                cats.addAll(requestPolicyPatternNames(new StreamSource(policy)));
+            } finally {
+                if (policy != null) policy.close();
+            }
+            categoryNames = Collections.unmodifiableCollection(cats);
+        }
+        return categoryNames;
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.bl.dpt.qa.flint.Flint;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.checks.CheckResultCodec;
+import uk.bl.dpt.qa.flint.formats.Format;
+import uk.bl.dpt.qa.flint.formats.PolicyAware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entry point of a worker process started by a {@link WorkerPool}.
+ *
+ * Reads check requests from stdin and writes the results to stdout, see
+ * {@link WorkerProtocol}.  Everything else that would go to stdout, e.g. logging,
+ * goes to stderr instead.
+ */
+public final class WorkerMain {
+
+    private WorkerMain() {}
+
+    /**
+     * Main method
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        // take stdout for the protocol before anything (e.g. a logger) can write to it
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        Logger logger = LoggerFactory.getLogger(WorkerMain.class);
+
+        try {
+            Map<String, Format> formats = Flint.getAvailableFormats();
+            out.writeInt(WorkerProtocol.MAGIC);
+            out.writeByte(WorkerProtocol.VERSION);
+            out.flush();
+            logger.info("worker ready with formats {}", formats.keySet());
+
+            while (true) {
+                byte command;
+                try {
+                    command = in.readByte();
+                } catch (EOFException e) {
+                    // the pool has gone away
+                    break;
+                }
+                if (command == WorkerProtocol.EXIT) break;
+                if (command != WorkerProtocol.CHECK) {
+                    throw new IOException("unknown command " + command);
+                }
+                String formatName = in.readUTF();
+                File file = new File(in.readUTF());
+                Set<String> filter = WorkerProtocol.readFilter(in);
+                check(formats.get(formatName), formatName, file, filter, out, logger);
+            }
+        } catch (Exception e) {
+            logger.error("worker failed: {}", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void check(Format pFormat, String pFormatName, File pFile, Set<String> pFilter,
+                              DataOutputStream pOut, Logger pLogger) throws IOException {
+        if (pFormat == null) {
+            sendError("unknown format " + pFormatName, pOut);
+            return;
+        }
+        try {
+            if (pFormat instanceof PolicyAware) {
+                PolicyAware policyAware = (PolicyAware) pFormat;
+                Set<String> current = policyAware.getPatternFilter();
+                if (pFilter == null ? current != null : !pFilter.equals(current)) {
+                    policyAware.setPatternFilter(pFilter);
+                }
+            }
+            CheckResult result = pFormat.validationResult(pFile);
+            pOut.writeByte(WorkerProtocol.OK);
+            CheckResultCodec.write(result, pOut);
+            pOut.flush();
+        } catch (OutOfMemoryError e) {
+            // answer while we still can, then make room for a fresh worker
+            pLogger.error("out of memory while checking {}", pFile);
+            sendError(WorkerProtocol.FATAL, "out of memory", pOut);
+            System.exit(2);
+        } catch (Throwable t) {
+            pLogger.error("exception while checking {}: {}", pFile, t);
+            sendError(WorkerProtocol.ERROR, t.toString(), pOut);
+        }
+    }
+
+    private static void sendError(String pMessage, DataOutputStream pOut) throws IOException {
+        sendError(WorkerProtocol.ERROR, pMessage, pOut);
+    }
+
+    private static void sendError(byte pStatus, String pMessage, DataOutputStream pOut) throws IOException {
+        pOut.writeByte(pStatus);
+        // writeUTF can't handle more than 64k
+        pOut.writeUTF(pMessage.length() > 1000 ? pMessage.substring(0, 1000) : pMessage);
+        pOut.flush();
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.checks.CheckResultCodec;
+import uk.bl.dpt.qa.flint.formats.Format;
+import uk.bl.dpt.qa.flint.formats.PolicyAware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link Format#validationResult(File)} in a pool of separate JVMs, so that a file
+ * crashing its parser, running it out of memory or making it hang only costs the worker
+ * process it was checked in, which is then replaced by a fresh one.
+ *
+ * The workers are started, and their formats loaded, when the pool is created.  Each
+ * worker gets its own maximum heap size.  A file that crashes or times out its worker
+ * gets a check-result with a failed {@link #WORKER_CATEGORY} category.
+ *
+ * The pool is thread-safe; a check waits for a free worker.  Closing the pool stops the
+ * idle workers right away and the others once their check is done.
+ */
+public class WorkerPool implements Closeable {
+
+    /**
+     * Name of the category (and check) reporting that the file couldn't be checked by a worker
+     */
+    public static final String WORKER_CATEGORY = "out-of-process-check";
+
+    private static Logger LOGGER = LoggerFactory.getLogger(WorkerPool.class);
+
+    private final String maxHeap;
+    private final long timeout;
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "flint-worker-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Thread shutdownHook = new Thread("flint-worker-shutdown") {
+        @Override
+        public void run() {
+            // don't leave orphaned workers behind if the pool isn't closed
+            for (Worker worker : workers) {
+                worker.kill();
+            }
+        }
+    };
+    private final Object lock = new Object();
+    private volatile boolean closed = false;
+    // workers stopped since the pool was closed
+    private int stopped = 0;
+
+    /**
+     * Create a new WorkerPool and start its workers
+     * @param pWorkers number of worker processes
+     * @param pMaxHeap maximum heap size of each worker, as for -Xmx (e.g. "1g"), or null for the JVM's default
+     * @param pTimeout time [s] a worker may take to check a file before it is killed
+     * @throws IOException if the workers can't be started
+     */
+    public WorkerPool(int pWorkers, String pMaxHeap, long pTimeout) throws IOException {
+        if (pWorkers < 1) throw new IllegalArgumentException("need at least one worker, got " + pWorkers);
+        this.maxHeap = pMaxHeap;
+        this.timeout = pTimeout;
+        this.idle = new ArrayBlockingQueue<Worker>(pWorkers);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        List<ScheduledFuture<?>> watches = new ArrayList<ScheduledFuture<?>>();
+        try {
+            // start all of them first, so they warm up at the same time
+            for (int i = 0; i < pWorkers; i++) {
+                Worker worker = new Worker(i + 1);
+                workers.add(worker);
+                watches.add(worker.launch());
+            }
+            for (int i = 0; i < pWorkers; i++) {
+                workers.get(i).awaitStarted(watches.get(i));
+                idle.add(workers.get(i));
+            }
+        } catch (WorkerFailure e) {
+            for (Worker worker : workers) {
+                worker.kill();
+            }
+            close();
+            watchdog.shutdownNow();
+            throw new IOException(e.getMessage());
+        }
+        LOGGER.info("started {} workers", pWorkers);
+    }
+
+    /**
+     * Check a file with a format in one of the workers.  The worker's format is configured
+     * with the same pattern filter as the given one.
+     * @param pFormat the format to check the file with
+     * @param pFile the file to check
+     * @return the check-result from the worker, or a failed one if the worker didn't produce one
+     */
+    public CheckResult check(Format pFormat, File pFile) {
+        if (closed) throw new IllegalStateException("worker pool has been closed");
+        Set<String> filter = (pFormat instanceof PolicyAware) ? ((PolicyAware) pFormat).getPatternFilter() : null;
+        long start = System.currentTimeMillis();
+        Worker worker = null;
+        try {
+            // a pool closed while waiting doesn't hand out its workers any more
+            while (worker == null) {
+                if (closed) throw new IllegalStateException("worker pool has been closed");
+                worker = idle.poll(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failedResult(pFormat, pFile, "interrupted while waiting for a worker", start);
+        }
+        try {
+            return worker.check(pFormat.getFormatName(), pFile, filter);
+        } catch (WorkerFailure e) {
+            LOGGER.error("worker {} failed on {}: {}", worker.id, pFile, e.getMessage());
+            return failedResult(pFormat, pFile, e.getMessage(), start);
+        } finally {
+            release(worker);
+        }
+    }
+
+    /**
+     * Stop the idle workers; the ones still checking a file are stopped when they are done
+     */
+    @Override
+    public void close() {
+        List<Worker> toStop = new ArrayList<Worker>();
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            idle.drainTo(toStop);
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down, the hook takes care of the workers
+        }
+        for (Worker worker : toStop) {
+            worker.stop();
+        }
+        stopped(toStop.size());
+    }
+
+    /**
+     * Hand a worker back after a check, or stop it if the pool has been closed meanwhile
+     */
+    private void release(Worker pWorker) {
+        synchronized (lock) {
+            if (!closed) {
+                idle.add(pWorker);
+                return;
+            }
+        }
+        pWorker.stop();
+        stopped(1);
+    }
+
+    private void stopped(int pCount) {
+        synchronized (lock) {
+            stopped += pCount;
+            // the watchdog looks after the checks still running until the last worker is stopped
+            if (stopped < workers.size()) return;
+        }
+        watchdog.shutdownNow();
+    }
+
+    private static CheckResult failedResult(Format pFormat, File pFile, String pReason, long pStart) {
+        CheckResult result;
+        try {
+            result = new CheckResult(pFile.getName(), pFormat.getFormatName(), pFormat.getVersion(), pFormat.getAllCategoryNames());
+        } catch (Exception e) {
+            result = new CheckResult(pFile.getName(), pFormat.getFormatName(), pFormat.getVersion());
+        }
+        result.add(CheckCategory.incomplete(WORKER_CATEGORY));
+        result.setTime(System.currentTimeMillis() - pStart);
+        LOGGER.warn("Added validation error category '{}' for {}: {}", WORKER_CATEGORY, pFile, pReason);
+        return result;
+    }
+
+    /**
+     * A worker failed to produce a check-result
+     */
+    @SuppressWarnings("serial")
+    private static class WorkerFailure extends Exception {
+        WorkerFailure(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One worker process, restarted whenever it has died or been killed
+     */
+    private class Worker {
+        private final int id;
+        private volatile Process process;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private boolean ready = false;
+        private volatile boolean killed = false;
+
+        Worker(int pId) {
+            this.id = pId;
+        }
+
+        void start() throws IOException {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+            if (maxHeap != null) command.add("-Xmx" + maxHeap);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(WorkerMain.class.getName());
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            ready = false;
+        }
+
+        void awaitReady() throws IOException {
+            if (ready) return;
+            if (in.readInt() != WorkerProtocol.MAGIC || in.readUnsignedByte() != WorkerProtocol.VERSION) {
+                throw new IOException("worker " + id + " doesn't speak the expected protocol");
+            }
+            ready = true;
+        }
+
+        CheckResult check(String pFormatName, File pFile, Set<String> pFilter) throws WorkerFailure {
+            if (process == null) respawn();
+            ScheduledFuture<?> watch = watch();
+            try {
+                out.writeByte(WorkerProtocol.CHECK);
+                out.writeUTF(pFormatName);
+                out.writeUTF(pFile.getAbsolutePath());
+                WorkerProtocol.writeFilter(pFilter, out);
+                out.flush();
+                byte status = in.readByte();
+                if (status == WorkerProtocol.OK) {
+                    return CheckResultCodec.read(in);
+                }
+                String message = in.readUTF();
+                if (status == WorkerProtocol.FATAL) kill();
+                throw new WorkerFailure(message);
+            } catch (IOException e) {
+                boolean timedOut = killed;
+                kill();
+                throw new WorkerFailure(timedOut ? "timed out after " + timeout + " seconds" : "worker died: " + e);
+            } finally {
+                // once the watchdog has started it destroys the process, even if the result
+                // has been read by then; the worker is replaced for the next file
+                if (!watch.cancel(false)) kill();
+            }
+        }
+
+        /**
+         * Replace a worker that died on the previous file, before the clock for the next
+         * file starts; it gets as long to start up as a file gets to be checked
+         */
+        private void respawn() throws WorkerFailure {
+            awaitStarted(launch());
+        }
+
+        /**
+         * Start the process, watched as long as a file gets to be checked
+         * @return the watchdog, to be handed to {@link #awaitStarted(ScheduledFuture)}
+         * @throws WorkerFailure if the process can't be started
+         */
+        ScheduledFuture<?> launch() throws WorkerFailure {
+            ScheduledFuture<?> watch = watch();
+            try {
+                start();
+            } catch (IOException e) {
+                watch.cancel(false);
+                kill();
+                throw new WorkerFailure("worker " + id + " couldn't be started: " + e);
+            }
+            return watch;
+        }
+
+        /**
+         * Wait for a launched process to be ready, or for its watchdog to destroy it
+         * @param pWatch the watchdog returned by {@link #launch()}
+         * @throws WorkerFailure if the process didn't get ready in time
+         */
+        void awaitStarted(ScheduledFuture<?> pWatch) throws WorkerFailure {
+            try {
+                awaitReady();
+            } catch (IOException e) {
+                pWatch.cancel(false);
+                boolean timedOut = killed;
+                kill();
+                throw new WorkerFailure(timedOut ? "worker " + id + " didn't start within " + timeout + " seconds" :
+                        "worker " + id + " couldn't be started: " + e);
+            }
+            if (!pWatch.cancel(false)) {
+                kill();
+                throw new WorkerFailure("worker " + id + " didn't start within " + timeout + " seconds");
+            }
+        }
+
+        /**
+         * @return a watchdog destroying the process once the timeout has passed
+         */
+        private ScheduledFuture<?> watch() {
+            killed = false;
+            return watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    killed = true;
+                    Process p = process;
+                    if (p != null) p.destroy();
+                }
+            }, timeout, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Get rid of the process; a new one is started for the next file
+         */
+        void kill() {
+            Process p = process;
+            if (p != null) {
+                p.destroy();
+                process = null;
+            }
+        }
+
+        /**
+         * Ask the process to exit; only to be called by the thread the worker is handed to,
+         * or for an idle worker
+         */
+        void stop() {
+            if (process == null) return;
+            try {
+                out.writeByte(WorkerProtocol.EXIT);
+                out.flush();
+            } catch (IOException e) {
+                // it's gone already
+            }
+            kill();
+        }
+    }
+}
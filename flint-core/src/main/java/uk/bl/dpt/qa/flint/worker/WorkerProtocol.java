@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.worker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The binary protocol spoken between a {@link WorkerPool} and its {@link WorkerMain} processes
+ * over the workers' stdin and stdout.
+ *
+ * On start-up the worker writes {@link #MAGIC} and {@link #VERSION} once all formats are
+ * loaded.  Then the pool sends requests, each one answered by exactly one response:
+ * <pre>
+ * CHECK format path filter  ->  OK result | ERROR message | FATAL message
+ * EXIT                      ->  (worker exits)
+ * </pre>
+ * A worker answering FATAL exits straight after, e.g. when it has run out of memory.
+ * Results are encoded by {@link uk.bl.dpt.qa.flint.checks.CheckResultCodec}; a filter is a count (-1 for no filter)
+ * followed by the pattern names.
+ */
+final class WorkerProtocol {
+
+    static final int MAGIC = 0x464c4e54; // "FLNT"
+    static final int VERSION = 1;
+
+    static final byte CHECK = 1;
+    static final byte EXIT = 2;
+
+    static final byte OK = 1;
+    static final byte ERROR = 2;
+    static final byte FATAL = 3;
+
+    private WorkerProtocol() {}
+
+    static void writeFilter(Set<String> pFilter, DataOutput pOut) throws IOException {
+        if (pFilter == null) {
+            pOut.writeInt(-1);
+            return;
+        }
+        pOut.writeInt(pFilter.size());
+        for (String pattern : pFilter) {
+            pOut.writeUTF(pattern);
+        }
+    }
+
+    static Set<String> readFilter(DataInput pIn) throws IOException {
+        int size = pIn.readInt();
+        if (size < 0) return null;
+        Set<String> filter = new HashSet<String>();
+        for (int i = 0; i < size; i++) {
+            filter.add(pIn.readUTF());
+        }
+        return filter;
+    }
+}
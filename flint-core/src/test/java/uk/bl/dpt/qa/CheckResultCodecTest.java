@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.checks.CheckResultCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class CheckResultCodecTest {
+
+    private static CheckResult roundTrip(CheckResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckResultCodec.write(result, new DataOutputStream(bytes));
+        return CheckResultCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static String xml(CheckResult result) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(out);
+        result.toXML(pw, "", "  ");
+        pw.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CheckCategory cc1 = new CheckCategory("testCc1");
+        cc1.add(new CheckCheck("testCheck1", true, null));
+        cc1.add(new CheckCheck("testCheck2", false, 3));
+        CheckCategory cc2 = new CheckCategory("testCc2");
+        cc2.add(new CheckCheck("testCheck3", null, 0));
+        CheckResult result = new CheckResult("some<File>name", "aFormat", "aVersion",
+                Arrays.asList("testCc1", "testCc2", "notRun"));
+        result.add(cc1);
+        result.add(cc2);
+        result.setTime(42L);
+
+        CheckResult read = roundTrip(result);
+
+        assertThat(read.toMap()).isEqualTo(result.toMap());
+        assertThat(xml(read)).isEqualTo(xml(result));
+        assertThat(read.get("testCc1").get("testCheck2").getErrorCount()).isEqualTo(3);
+        assertThat(read.get("testCc2").get("testCheck3").isHappy()).isNull();
+        assertThat(read.get("notRun")).isNull();
+    }
+
+    @Test
+    public void testRoundTripIncomplete() throws IOException {
+        CheckCategory looksIncomplete = new CheckCategory("failedCheck");
+        looksIncomplete.add(new CheckCheck("failedCheck", false, null));
+        CheckResult result = new CheckResult("someFilename", "aFormat", "aVersion");
+        result.add(looksIncomplete);
+        result.add(CheckCategory.incomplete("slowCheck"));
+        result.setTime(1L);
+
+        CheckResult read = roundTrip(result);
+
+        assertThat(read.get("failedCheck").isIncomplete()).isFalse();
+        assertThat(read.get("slowCheck").isIncomplete()).isTrue();
+        assertThat(read.isIncomplete()).isTrue();
+        assertThat(xml(read)).isEqualTo(xml(result));
+    }
+
+    @Test
+    public void testRoundTripWithoutTime() throws IOException {
+        CheckResult result = new CheckResult("someFilename", "aFormat", null);
+
+        CheckResult read = roundTrip(result);
+
+        assertThat(read.getVersion()).isNull();
+        assertThat(read.getResult()).isEqualTo("erroneous");
+    }
+
+}
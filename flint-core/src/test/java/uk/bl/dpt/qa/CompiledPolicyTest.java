@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.formats.CompiledPolicy;
+import uk.bl.dpt.qa.flint.formats.PolicyAware;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class CompiledPolicyTest {
+
+    private static final String POLICY =
+            "<s:schema xmlns:s=\"http://purl.oclc.org/dsdl/schematron\">\n" +
+            "  <s:ns uri=\"urn:test\" prefix=\"t\"/>\n" +
+            "  <s:pattern name=\"Root\">\n" +
+            "    <s:rule context=\"/\">\n" +
+            "      <s:assert test=\"t:report\">Report element missing</s:assert>\n" +
+            "    </s:rule>\n" +
+            "  </s:pattern>\n" +
+            "  <s:pattern name=\"Errors\">\n" +
+            "    <s:rule context=\"t:error[@code = '1']\">\n" +
+            "      <s:assert test=\"false()\">Error 1</s:assert>\n" +
+            "    </s:rule>\n" +
+            "    <s:rule context=\"t:error\">\n" +
+            "      <s:assert test=\"@code = '1'\">Other error</s:assert>\n" +
+            "      <s:report test=\"@code = '3'\">Error 3</s:report>\n" +
+            "    </s:rule>\n" +
+            "  </s:pattern>\n" +
+            "</s:schema>";
+
+    private static class TestPolicyAware extends PolicyAware {
+        @Override
+        public InputStream getPolicy() {
+            try {
+                return new ByteArrayInputStream(POLICY.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static StreamSource report(String errors) throws UnsupportedEncodingException {
+        String xml = "<report xmlns=\"urn:test\">" + errors + "</report>";
+        return new StreamSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testCountsAreNotCarriedOver() throws Exception {
+        CompiledPolicy policy = new TestPolicyAware().getCompiledPolicy();
+
+        LinkedHashMap<String, CheckCategory> first = policy.validate(
+                report("<error code='1'/><error code='2'/><error code='3'/><error code='3'/>"));
+        assertThat(first.keySet()).containsOnly("Root", "Errors");
+        assertThat(first.get("Root").get("Report element missing").isHappy()).isTrue();
+        // only the first matching rule of a pattern fires
+        assertThat(first.get("Errors").get("Error 1").getErrorCount()).isEqualTo(1);
+        assertThat(first.get("Errors").get("Other error").getErrorCount()).isEqualTo(3);
+        assertThat(first.get("Errors").get("Error 3").getErrorCount()).isEqualTo(2);
+
+        LinkedHashMap<String, CheckCategory> second = policy.validate(report("<error code='2'/>"));
+        assertThat(second.get("Errors").get("Error 1").isHappy()).isTrue();
+        assertThat(second.get("Errors").get("Other error").getErrorCount()).isEqualTo(1);
+        assertThat(second.get("Errors").get("Error 3").isHappy()).isTrue();
+
+        LinkedHashMap<String, CheckCategory> third = policy.validate(
+                new StreamSource(new ByteArrayInputStream("<other/>".getBytes("UTF-8"))));
+        assertThat(third.get("Root").get("Report element missing").getErrorCount()).isEqualTo(1);
+        assertThat(third.get("Errors").get("Other error").isHappy()).isTrue();
+    }
+
+    @Test
+    public void testConcurrentValidations() throws Exception {
+        final CompiledPolicy policy = new TestPolicyAware().getCompiledPolicy();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 32; i++) {
+            final int errors = i % 4;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    StringBuilder xml = new StringBuilder();
+                    for (int e = 0; e < errors; e++) xml.append("<error code='2'/>");
+                    CheckCategory cc = policy.validate(report(xml.toString())).get("Errors");
+                    return cc.get("Other error").isHappy() ? 0 : cc.get("Other error").getErrorCount();
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                assertThat(results.get(i).get()).isEqualTo(i % 4);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPatternFilter() throws Exception {
+        TestPolicyAware format = new TestPolicyAware();
+        CompiledPolicy all = format.getCompiledPolicy();
+        assertThat(format.getCompiledPolicy()).isSameAs(all);
+
+        format.setPatternFilter(Collections.singleton("Errors"));
+        CompiledPolicy filtered = format.getCompiledPolicy();
+        assertThat(filtered).isNotSameAs(all);
+        assertThat(filtered.validate(report("<error code='2'/>")).keySet()).containsOnly("Errors");
+        // another instance with the same filter shares the compiled policy
+        TestPolicyAware other = new TestPolicyAware();
+        other.setPatternFilter(Collections.singleton("Errors"));
+        assertThat(other.getCompiledPolicy()).isSameAs(filtered);
+    }
+
+}
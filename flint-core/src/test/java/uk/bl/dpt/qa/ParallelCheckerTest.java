@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.bl.dpt.qa.flint.Flint;
+import uk.bl.dpt.qa.flint.ParallelChecker;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.formats.ReadingTestFormat;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class ParallelCheckerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testReadableFile() throws Exception {
+        File file = tmp.newFile("good.readtest");
+        List<List<CheckResult>> results = new ParallelChecker(new Flint(), 2).checkMany(file);
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0)).hasSize(1);
+        assertThat(results.get(0).get(0).getFormat()).isEqualTo("READING_TEST");
+        assertThat(results.get(0).get(0).getResult()).isEqualTo("passed");
+    }
+
+    @Test
+    public void testUnreadableFileIsReported() throws Exception {
+        // gone by the time it is checked, as if it couldn't be read
+        File file = new File(tmp.getRoot(), "gone.readtest");
+        List<List<CheckResult>> results = new ParallelChecker(new Flint(), 2).checkMany(file);
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0)).hasSize(1);
+        CheckResult result = results.get(0).get(0);
+        assertThat(result.getFilename()).isEqualTo("gone.readtest");
+        assertThat(result.get(ParallelChecker.CHECK_CATEGORY)).isNotNull();
+        assertThat(result.isIncomplete()).isTrue();
+        assertThat(result.getResult()).isEqualTo("failed");
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.bl.dpt.qa.flint.FileManifest;
+import uk.bl.dpt.qa.flint.ResultCache;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.formats.Format;
+import uk.bl.dpt.qa.flint.formats.PolicyAware;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static class TestFormat implements Format {
+        private final String version;
+
+        TestFormat(String pVersion) {
+            this.version = pVersion;
+        }
+
+        public boolean canCheck(File pFile, String pMimetype) { return true; }
+        public boolean canCheck(String pMimetype) { return true; }
+        public Collection<String> acceptedMimeTypes() { return Collections.emptySet(); }
+        public CheckResult validationResult(File contentFile) { return null; }
+        public Map<String, Map<String, Set<String>>> getFixedCategories() { return Collections.emptyMap(); }
+        public Collection<String> getAllCategoryNames() { return Collections.emptySet(); }
+        public String getFormatName() { return "TEST"; }
+        public String getVersion() { return version; }
+    }
+
+    private static class TestPolicyFormat extends PolicyAware implements Format {
+        public InputStream getPolicy() { return null; }
+        public boolean canCheck(File pFile, String pMimetype) { return true; }
+        public boolean canCheck(String pMimetype) { return true; }
+        public Collection<String> acceptedMimeTypes() { return Collections.emptySet(); }
+        public CheckResult validationResult(File contentFile) { return null; }
+        public Map<String, Map<String, Set<String>>> getFixedCategories() { return Collections.emptyMap(); }
+        public Collection<String> getAllCategoryNames() { return Collections.emptySet(); }
+        public String getFormatName() { return "TEST"; }
+        public String getVersion() { return "1"; }
+    }
+
+    private File file(String name, String content) throws IOException {
+        File f = tmp.newFile(name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return f;
+    }
+
+    private static CheckResult result(String filename) {
+        CheckCategory cc = new CheckCategory("testCc");
+        cc.add(new CheckCheck("testCheck", false, 2));
+        CheckResult result = new CheckResult(filename, "TEST", "1");
+        result.add(cc);
+        result.setTime(42L);
+        return result;
+    }
+
+    @Test
+    public void testHitForSameContent() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        Format format = new TestFormat("1");
+        File a = file("a", "some content");
+        File b = file("b", "some content");
+
+        String digest = cache.contentDigest(a);
+        assertThat(cache.get(a, digest, format)).isNull();
+        assertThat(cache.put(digest, format, result("a"))).isTrue();
+
+        assertThat(cache.contentDigest(b)).isEqualTo(digest);
+        CheckResult cached = cache.get(b, digest, format);
+        assertThat(cached).isNotNull();
+        assertThat(cached.getFilename()).isEqualTo("b");
+        assertThat(cached.getResult()).isEqualTo("failed");
+        assertThat(cached.get("testCc").get("testCheck").getErrorCount()).isEqualTo(2);
+
+        // a new cache on the same directory sees the stored result
+        assertThat(new ResultCache(cache.getDirectory()).get(a, digest, format)).isNotNull();
+    }
+
+    @Test
+    public void testMissForChangedContentOrVersion() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        File a = file("a", "some content");
+        File b = file("b", "other content");
+        String digest = cache.contentDigest(a);
+        cache.put(digest, new TestFormat("1"), result("a"));
+
+        assertThat(cache.contentDigest(b)).isNotEqualTo(digest);
+        assertThat(cache.get(b, cache.contentDigest(b), new TestFormat("1"))).isNull();
+        assertThat(cache.get(a, digest, new TestFormat("2"))).isNull();
+    }
+
+    @Test
+    public void testMissForNullOrEmptyPatternFilter() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        File a = file("a", "some content");
+        String digest = cache.contentDigest(a);
+        TestPolicyFormat all = new TestPolicyFormat();
+        TestPolicyFormat none = new TestPolicyFormat();
+        none.setPatternFilter(new HashSet<String>());
+
+        cache.put(digest, all, result("a"));
+        assertThat(cache.get(a, digest, all)).isNotNull();
+        assertThat(cache.get(a, digest, none)).isNull();
+
+        ResultCache other = new ResultCache(tmp.newFolder("other"));
+        other.put(digest, none, result("a"));
+        assertThat(other.get(a, digest, none)).isNotNull();
+        assertThat(other.get(a, digest, all)).isNull();
+    }
+
+    @Test
+    public void testIncompleteResultsAreNotStored() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        Format format = new TestFormat("1");
+        File a = file("a", "some content");
+        String digest = cache.contentDigest(a);
+
+        CheckResult timedOut = result("a");
+        timedOut.add(CheckCategory.incomplete("slowCheck"));
+        assertThat(cache.put(digest, format, timedOut)).isFalse();
+
+        CheckResult erroneous = new CheckResult("a", "TEST", "1");
+        assertThat(cache.put(digest, format, erroneous)).isFalse();
+
+        assertThat(cache.get(a, digest, format)).isNull();
+    }
+
+    @Test
+    public void testFailedResultsAreStored() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        Format format = new TestFormat("1");
+        File a = file("a", "some content");
+        String digest = cache.contentDigest(a);
+
+        // a category with a single failed check of its own name is a real result
+        CheckResult failed = result("a");
+        CheckCategory cc = new CheckCategory("oneCheck");
+        cc.add(new CheckCheck("oneCheck", false, null));
+        failed.add(cc);
+        assertThat(cache.put(digest, format, failed)).isTrue();
+
+        CheckResult read = cache.get(a, digest, format);
+        assertThat(read).isNotNull();
+        assertThat(read.get("oneCheck").isIncomplete()).isFalse();
+    }
+
+    @Test
+    public void testManifest() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        File manifestFile = new File(tmp.getRoot(), "manifest");
+        cache.setManifest(new FileManifest(manifestFile));
+        File a = file("a", "some content");
+        String digest = cache.contentDigest(a);
+        cache.getManifest().save();
+
+        // same size and modification time: the file isn't read again
+        long modified = a.lastModified();
+        FileOutputStream out = new FileOutputStream(a);
+        out.write("same content".getBytes("UTF-8"));
+        out.close();
+        assertThat(a.setLastModified(modified)).isTrue();
+        FileManifest reloaded = new FileManifest(manifestFile);
+        assertThat(reloaded.size()).isEqualTo(1);
+        cache.setManifest(reloaded);
+        assertThat(cache.contentDigest(a)).isEqualTo(digest);
+
+        // changed modification time: the file is digested again
+        assertThat(a.setLastModified(modified - 10000)).isTrue();
+        assertThat(cache.contentDigest(a)).isNotEqualTo(digest);
+    }
+
+    @Test
+    public void testManifestIsKeptWithoutSaveAndPruned() throws IOException {
+        ResultCache cache = new ResultCache(tmp.newFolder("cache"));
+        File manifestFile = new File(tmp.getRoot(), "manifest");
+        cache.setManifest(new FileManifest(manifestFile));
+        File a = file("a", "some content");
+        File b = file("b", "other content");
+        String digest = cache.contentDigest(a);
+        cache.contentDigest(b);
+
+        // entries are on disk as soon as they are recorded, e.g. when the run is killed
+        FileManifest reloaded = new FileManifest(manifestFile);
+        assertThat(reloaded.size()).isEqualTo(2);
+        assertThat(reloaded.getDigest(a)).isEqualTo(digest);
+
+        // files that have gone are dropped when the manifest is saved
+        assertThat(b.delete()).isTrue();
+        reloaded.save();
+        assertThat(new FileManifest(manifestFile).size()).isEqualTo(1);
+    }
+
+}
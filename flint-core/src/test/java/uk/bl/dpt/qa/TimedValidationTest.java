@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.qa.flint.checks.TimedTask;
+import uk.bl.dpt.qa.flint.checks.TimedValidation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class TimedValidationTest {
+
+    private static final File FILE = new File("some.file");
+
+    /**
+     * Sleeps for a while, then passes a category of its own name
+     */
+    private static class SleepingTask extends TimedTask {
+        private final long millis;
+
+        SleepingTask(String name, long timeout, long millis) {
+            super(name, timeout);
+            this.millis = millis;
+        }
+
+        @Override
+        public LinkedHashMap<String, CheckCategory> call() throws Exception {
+            Thread.sleep(millis);
+            CheckCategory cc = new CheckCategory(name);
+            cc.add(new CheckCheck(name, true, null));
+            LinkedHashMap<String, CheckCategory> cmap = new LinkedHashMap<String, CheckCategory>();
+            cmap.put(name, cc);
+            return cmap;
+        }
+    }
+
+    /**
+     * Ignores interrupts, like most parsers, and only returns once it is aborted
+     */
+    private static class HangingTask extends TimedTask {
+        final CountDownLatch aborted = new CountDownLatch(1);
+
+        HangingTask(String name, long timeout) {
+            super(name, timeout);
+        }
+
+        @Override
+        public LinkedHashMap<String, CheckCategory> call() throws Exception {
+            while (true) {
+                try {
+                    if (aborted.await(10, TimeUnit.MILLISECONDS)) {
+                        throw new IllegalStateException("aborted");
+                    }
+                } catch (InterruptedException e) {
+                    // carry on
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+    }
+
+    /**
+     * Counts how often it is closed
+     */
+    private static class CountingCloseable implements Closeable {
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testResultsInTaskOrder() {
+        LinkedHashMap<String, CheckCategory> cmap = TimedValidation.validateAll(Arrays.asList(
+                new SleepingTask("slow", 5, 300), new SleepingTask("fast", 5, 0), new SleepingTask("medium", 5, 100)),
+                FILE);
+        assertThat(new ArrayList<String>(cmap.keySet())).isEqualTo(Arrays.asList("slow", "fast", "medium"));
+        for (CheckCategory cc : cmap.values()) {
+            assertThat(cc.isHappy()).isTrue();
+            assertThat(cc.isIncomplete()).isFalse();
+        }
+    }
+
+    @Test
+    public void testTimeoutGivesIncompleteCategory() {
+        HangingTask hanging = new HangingTask("hanging", 1);
+        long start = System.nanoTime();
+        LinkedHashMap<String, CheckCategory> cmap = TimedValidation.validateAll(Arrays.asList(
+                hanging, new SleepingTask("quick", 5, 0)), FILE);
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(5);
+        assertThat(hanging.aborted.getCount()).isEqualTo(0);
+        assertThat(cmap.get("hanging").isIncomplete()).isTrue();
+        assertThat(cmap.get("hanging").isHappy()).isFalse();
+        assertThat(cmap.get("quick").isHappy()).isTrue();
+    }
+
+    @Test
+    public void testSharedResourceClosedAfterAllTasks() throws Exception {
+        final CountingCloseable shared = new CountingCloseable();
+        final HangingTask hanging = new HangingTask("hanging", 1);
+        final AtomicInteger closedWhileUsed = new AtomicInteger(-1);
+        TimedTask user = new SleepingTask("user", 5, 0) {
+            @Override
+            public LinkedHashMap<String, CheckCategory> call() throws Exception {
+                // still using the resource after the other task has been aborted
+                hanging.aborted.await(5, TimeUnit.SECONDS);
+                closedWhileUsed.set(shared.closed.get());
+                return super.call();
+            }
+        };
+        LinkedHashMap<String, CheckCategory> cmap = TimedValidation.validateAll(Arrays.asList(hanging, user), FILE, shared);
+        assertThat(closedWhileUsed.get()).isEqualTo(0);
+        assertThat(shared.closed.get()).isEqualTo(1);
+        assertThat(cmap.get("hanging").isIncomplete()).isTrue();
+        assertThat(cmap.get("user").isHappy()).isTrue();
+    }
+
+    @Test
+    public void testSharedResourceClosedWhenAllSucceed() {
+        CountingCloseable shared = new CountingCloseable();
+        TimedValidation.validateAll(Arrays.asList(new SleepingTask("a", 5, 50), new SleepingTask("b", 5, 0)), FILE, shared);
+        assertThat(shared.closed.get()).isEqualTo(1);
+    }
+
+}
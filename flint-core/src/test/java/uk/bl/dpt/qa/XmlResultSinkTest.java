@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.Flint;
+import uk.bl.dpt.qa.flint.XmlResultSink;
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class XmlResultSinkTest {
+
+    @Test
+    public void testSameOutputAsPrintResults() {
+        CheckCategory cc1 = new CheckCategory("testCc1");
+        cc1.add(new CheckCheck("testCheck1", true, null));
+        CheckResult result1 = new CheckResult("someFilename", "aFormat", "aVersion");
+        result1.add(cc1);
+        result1.setTime(1L);
+        CheckCategory cc2 = new CheckCategory("testCc2");
+        cc2.add(new CheckCheck("testCheck2", false, 3));
+        CheckResult result2 = new CheckResult("someFilename", "anotherFormat", "aVersion");
+        result2.add(cc2);
+        result2.setTime(2L);
+        List<CheckResult> results = Arrays.asList(result1, result2);
+
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(printed);
+        Flint.printResults(results, pw);
+        pw.close();
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        pw = new PrintWriter(streamed);
+        XmlResultSink sink = new XmlResultSink(pw);
+        File file = new File("someFilename");
+        sink.startFile(file);
+        for (CheckResult result : results) {
+            sink.add(file, result);
+        }
+        sink.endFile(file);
+
+        // flushed after each file, without closing the writer
+        assertThat(streamed.toString()).isEqualTo(printed.toString());
+        pw.close();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint;
+
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+import uk.bl.dpt.qa.flint.formats.FileTypeAware;
+import uk.bl.dpt.qa.flint.formats.Format;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+
+public class FormatDispatchTest {
+
+    /**
+     * A format that only knows what it accepts
+     */
+    private static class TestFormat implements Format {
+        private final String name;
+        private final Collection<String> mimetypes;
+
+        TestFormat(String pName, String... pMimetypes) {
+            this.name = pName;
+            this.mimetypes = Arrays.asList(pMimetypes);
+        }
+
+        @Override
+        public boolean canCheck(File pFile, String pMimetype) {
+            return canCheck(pMimetype);
+        }
+
+        @Override
+        public boolean canCheck(String pMimetype) {
+            return mimetypes.contains(pMimetype);
+        }
+
+        @Override
+        public Collection<String> acceptedMimeTypes() {
+            return mimetypes;
+        }
+
+        @Override
+        public CheckResult validationResult(File contentFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, Map<String, Set<String>>> getFixedCategories() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Collection<String> getAllCategoryNames() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getFormatName() {
+            return name;
+        }
+
+        @Override
+        public String getVersion() {
+            return "1";
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A format that also knows its extensions, and is routed to by the lookup tables
+     */
+    private static class TypedFormat extends TestFormat implements FileTypeAware {
+        private final Collection<String> extensions;
+
+        TypedFormat(String pName, Collection<String> pExtensions, String... pMimetypes) {
+            super(pName, pMimetypes);
+            this.extensions = pExtensions;
+        }
+
+        @Override
+        public Collection<String> acceptedExtensions() {
+            return extensions;
+        }
+    }
+
+    private static final TypedFormat PDF = new TypedFormat("PDF", Arrays.asList("pdf"), "application/pdf");
+    private static final TypedFormat EPUB = new TypedFormat("EPUB", Arrays.asList("epub"), "application/epub+zip");
+    private static final TypedFormat ZIP = new TypedFormat("ZIP", Arrays.asList("zip", "epub"), "application/zip");
+
+    private static List<Format> formats(Format... pFormats) {
+        return Arrays.asList(pFormats);
+    }
+
+    @Test
+    public void testByMimetype() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("file"), "application/pdf")).isEqualTo(formats(PDF));
+        assertThat(dispatch.formatsFor(new File("file.bin"), "application/epub+zip")).isEqualTo(formats(EPUB));
+    }
+
+    @Test
+    public void testByExtension() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("dir/file.pdf"), null)).isEqualTo(formats(PDF));
+        assertThat(dispatch.formatsFor(new File("FILE.PDF"), "text/plain")).isEqualTo(formats(PDF));
+        assertThat(dispatch.formatsFor(new File("file.Epub"), null)).isEqualTo(formats(EPUB));
+    }
+
+    @Test
+    public void testMimetypeAndExtensionAgree() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("file.pdf"), "application/pdf")).isEqualTo(formats(PDF));
+    }
+
+    @Test
+    public void testMimetypeAndExtensionDisagree() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB));
+        // in the order the formats were given in, not the order they were found in
+        assertThat(dispatch.formatsFor(new File("file.pdf"), "application/epub+zip")).isEqualTo(formats(PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("file.epub"), "application/pdf")).isEqualTo(formats(PDF, EPUB));
+    }
+
+    @Test
+    public void testSharedExtension() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB, ZIP));
+        assertThat(dispatch.formatsFor(new File("file.epub"), null)).isEqualTo(formats(EPUB, ZIP));
+        assertThat(dispatch.formatsFor(new File("file.epub"), "application/epub+zip")).isEqualTo(formats(EPUB, ZIP));
+        assertThat(dispatch.formatsFor(new File("file.zip"), "application/zip")).isEqualTo(formats(ZIP));
+    }
+
+    @Test
+    public void testNoMatch() {
+        FormatDispatch dispatch = new FormatDispatch(formats(PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("file.txt"), "text/plain")).isEmpty();
+        assertThat(dispatch.formatsFor(new File("file"), null)).isEmpty();
+        assertThat(dispatch.formatsFor(new File("file."), null)).isEmpty();
+        assertThat(dispatch.formatsFor(new File("file.pdfx"), null)).isEmpty();
+        // the dot belongs to a directory, the file has no extension
+        assertThat(dispatch.formatsFor(new File("dir.pdf" + File.separator + "file"), null)).isEmpty();
+    }
+
+    @Test
+    public void testOtherFormatsAreAsked() {
+        TestFormat text = new TestFormat("TEXT", "text/plain");
+        FormatDispatch dispatch = new FormatDispatch(formats(text, PDF));
+        assertThat(dispatch.formatsFor(new File("file.pdf"), "text/plain")).isEqualTo(formats(text, PDF));
+        assertThat(dispatch.formatsFor(new File("file.txt"), "text/plain")).isEqualTo(formats(text));
+        assertThat(dispatch.formatsFor(new File("file.pdf"), null)).isEqualTo(formats(PDF));
+        assertThat(dispatch.formatsFor(new File("file.txt"), null)).isEmpty();
+    }
+
+    @Test
+    public void testFormatsInOrder() {
+        FormatDispatch dispatch = new FormatDispatch(formats(ZIP, PDF, EPUB));
+        assertThat(dispatch.getFormats()).isEqualTo(formats(ZIP, PDF, EPUB));
+        assertThat(dispatch.formatsFor(new File("file.epub"), null)).isEqualTo(formats(ZIP, EPUB));
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.formats;
+
+import uk.bl.dpt.qa.flint.checks.CheckCategory;
+import uk.bl.dpt.qa.flint.checks.CheckCheck;
+import uk.bl.dpt.qa.flint.checks.CheckResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A format for the tests of FLint itself: it checks files ending in ".readtest" by
+ * reading them, and throws if they can't be read.
+ */
+public class ReadingTestFormat implements Format {
+
+    public static final String CATEGORY = "readable";
+
+    @Override
+    public boolean canCheck(File pFile, String pMimetype) {
+        return pFile.getName().endsWith(".readtest");
+    }
+
+    @Override
+    public boolean canCheck(String pMimetype) {
+        return false;
+    }
+
+    @Override
+    public Collection<String> acceptedMimeTypes() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public CheckResult validationResult(File contentFile) {
+        try {
+            InputStream in = new FileInputStream(contentFile);
+            in.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("can't read " + contentFile, e);
+        }
+        CheckCategory cc = new CheckCategory(CATEGORY);
+        cc.add(new CheckCheck(CATEGORY, true, null));
+        CheckResult result = new CheckResult(contentFile.getName(), getFormatName(), getVersion());
+        result.add(cc);
+        result.setTime(0L);
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<String, Set<String>>> getFixedCategories() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Collection<String> getAllCategoryNames() {
+        return Collections.singleton(CATEGORY);
+    }
+
+    @Override
+    public String getFormatName() {
+        return "READING_TEST";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1";
+    }
+}
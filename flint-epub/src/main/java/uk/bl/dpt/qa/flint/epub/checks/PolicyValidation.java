@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.bl.dpt.qa.flint.checks.CheckCategory;
 import uk.bl.dpt.qa.flint.checks.TimedTask;
+import uk.bl.dpt.qa.flint.formats.CompiledPolicy;
 import uk.bl.dpt.qa.flint.formats.EPUBFormat;
 import uk.bl.dpt.qa.flint.formats.PolicyAware;
 import uk.bl.dpt.qa.flint.wrappers.EpubCheckWrapper;
@@ -20,6 +21,7 @@ public class PolicyValidation extends TimedTask {
 
     private Logger logger;
     private Set<String> patternFilter;
+    private CompiledPolicy policy;
 
     /**
      * Constructor for PolicyValidation.
@@ -35,10 +37,25 @@ public class PolicyValidation extends TimedTask {
         this.logger = LoggerFactory.getLogger(this.getClass());
     }
 
+    /**
+     * Constructor for PolicyValidation.
+     *
+     * @param timeout the time [s] after which a TimeOutException is thrown and logged as
+     *                an 'erroneous' {@link uk.bl.dpt.qa.flint.checks.CheckCategory}
+     * @param policy the policy compiled for the format's pattern filter
+     */
+    public PolicyValidation(long timeout, CompiledPolicy policy) {
+        this(timeout, (Set<String>) null);
+        this.policy = policy;
+    }
+
     @Override
     public LinkedHashMap<String, CheckCategory> call() throws Exception {
         logger.info("Performing a policy validation on {}", contentFile);
         StreamSource outputXml = EpubCheckWrapper.check(contentFile);
+        if (policy != null) {
+            return policy.validate(outputXml);
+        }
         return PolicyAware.policyValidationResult(outputXml,
                 new StreamSource(EPUBFormat.getPolicyStatically()), patternFilter);
     }
@@ -10,8 +10,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 /**
@@ -59,28 +57,22 @@ public class SpecificDrmChecks extends TimedTask {
         final String RIGHTSFILE = "META-INF/rights.xml";//http://www.idpf.org/epub/30/spec/epub30-ocf.html#sec-container-metainf-rights.xml
         final String ENCFILE = "META-INF/encryption.xml";//http://www.idpf.org/epub/30/spec/epub30-ocf.html#sec-container-metainf-encryption.xml
 
-        ZipFile zip;
         try {
-            zip = new ZipFile(pEPUB);
+            ZipFile zip = new ZipFile(pEPUB);
+            try {
+                if (zip.getEntry(RIGHTSFILE) != null) {
+                    ret = true;
+                }
 
-            ZipEntry entry = zip.getEntry(RIGHTSFILE);
-            if(null!=entry) {
-                ret = true;
+                if (zip.getEntry(ENCFILE) != null) {
+                    ret = true;
+                }
+            } finally {
+                zip.close();
             }
 
-            entry = zip.getEntry(ENCFILE);
-            if(null!=entry) {
-                ret = true;
-            }
-
-            zip.close();
-
-        } catch (ZipException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            logger.warn("can't read the container of {}: {}", pEPUB, e);
         }
 
         //System.out.println("Rights and/or encryption file: "+ret);
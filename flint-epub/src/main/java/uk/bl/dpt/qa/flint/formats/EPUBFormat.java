@@ -23,11 +23,11 @@ import uk.bl.dpt.qa.flint.epub.checks.PolicyValidation;
 import uk.bl.dpt.qa.flint.epub.checks.SpecificDrmChecks;
 import uk.bl.dpt.qa.flint.epub.checks.Wellformedness;
 
-import javax.xml.transform.stream.StreamSource;
 import java.io.File;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -39,13 +39,19 @@ import java.util.TreeSet;
  * https://github.com/jaketmp/ePub-quicklook
  * Seems most EPUB DRM uses Adobe Content Server (Digital Editions) or Apple FairPlay
  */
-public class EPUBFormat extends PolicyAware implements Format {
+public class EPUBFormat extends PolicyAware implements Format, FileTypeAware {
 
     private final static String SCH_POLICY = "/epubcheck-policy-validation/minimal.sch";
 
     // when does a wrapper's task timeout [seconds]
     private final static long WRAPPER_TIMEOUT = 10 * 60;
 
+    private final static Set<String> MIME_TYPES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("application/epub+zip", "application/x-ibooks+zip")));
+
+    private final static Set<String> EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("epub", "ibooks")));
+
     public Map<String, Map<String, Set<String>>> getFixedCategories() {
         final Set<String> noDRM = new TreeSet<String>() {{
             add("checkForRightsFile");
@@ -67,26 +73,24 @@ public class EPUBFormat extends PolicyAware implements Format {
 
     @Override
     public Collection<String> getAllCategoryNames() throws Exception {
-        Collection<String> cats = new ArrayList<String>();
-        cats.addAll(getFixedCategories().keySet());
-        // add a potential policy validation error to all category names
-        cats.add(FixedCategories.POLICY_VALIDATION.name());
-        cats.addAll(requestPolicyPatternNames(new StreamSource(this.getPolicy())));
-        return cats;
+        return policyCategoryNames(getFixedCategories().keySet(), FixedCategories.POLICY_VALIDATION.name());
     }
 
     @Override
     public CheckResult validationResult(File contentFile) {
         CheckResult checkResult;
+        CompiledPolicy policy;
         try {
             checkResult = new CheckResult(contentFile.getName(), this.getFormatName(), this.getVersion(), getAllCategoryNames());
+            policy = getCompiledPolicy();
         } catch (Exception e) {
             throw new RuntimeException("could not initialise check-result! reason: {}", e);
         }
         Long startTime = System.currentTimeMillis();
-        checkResult.addAll(TimedValidation.validate(new PolicyValidation(WRAPPER_TIMEOUT, patternFilter), contentFile));
-        checkResult.addAll(TimedValidation.validate(new SpecificDrmChecks(WRAPPER_TIMEOUT, patternFilter), contentFile));
-        checkResult.addAll(TimedValidation.validate(new Wellformedness(WRAPPER_TIMEOUT, patternFilter), contentFile));
+        checkResult.addAll(TimedValidation.validateAll(Arrays.asList(
+                new PolicyValidation(WRAPPER_TIMEOUT, policy),
+                new SpecificDrmChecks(WRAPPER_TIMEOUT, patternFilter),
+                new Wellformedness(WRAPPER_TIMEOUT, patternFilter)), contentFile));
         checkResult.setTime(System.currentTimeMillis() - startTime);
         logger.info("all checks done for {}", this.getFormatName());
         return checkResult;
@@ -102,15 +106,17 @@ public class EPUBFormat extends PolicyAware implements Format {
 
     @Override
     public boolean canCheck(String pMimetype) {
-        return acceptedMimeTypes().contains(pMimetype);
+        return MIME_TYPES.contains(pMimetype);
     }
 
     @Override
     public Collection<String> acceptedMimeTypes() {
-        return new HashSet<String>() {{
-            add("application/epub+zip");
-            add("application/x-ibooks+zip");
-        }};
+        return MIME_TYPES;
+    }
+
+    @Override
+    public Collection<String> acceptedExtensions() {
+        return EXTENSIONS;
     }
 
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.epub;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.wrappers.TikaWrapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests that the OCF sniffer of TikaWrapper agrees with Tika on the sample EPUBs.
+ */
+public class OcfSnifferTest {
+
+    private static File sample(String pName) {
+        return new File(OcfSnifferTest.class.getResource("/epub_samples/" + pName).getPath());
+    }
+
+    private static void check(String pName) throws IOException {
+        File file = sample(pName);
+        byte[] head = new byte[4 * 1024];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        String tika;
+        in = new FileInputStream(file);
+        try {
+            tika = TikaWrapper.getMimetype(in);
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(pName, "application/epub+zip", tika);
+        Assert.assertEquals(pName, tika, TikaWrapper.OCF.sniff(head, length));
+        Assert.assertEquals(pName, tika, TikaWrapper.getMimetype(file));
+    }
+
+    @Test
+    public final void testWastelandOtfObf20120118() throws IOException {
+        check("wasteland-otf-obf-20120118.epub");
+    }
+
+    @Test
+    public final void testWastelandWoffObf20120118() throws IOException {
+        check("wasteland-woff-obf-20120118.epub");
+    }
+
+    @Test
+    public final void testNotSniffed() throws IOException {
+        Assert.assertNull(TikaWrapper.OCF.sniff(new byte[0], 0));
+        Assert.assertNull(TikaWrapper.OCF.sniff(new byte[] {'P', 'K', 3, 4, 0, 0}, 6));
+    }
+
+}
@@ -26,13 +26,13 @@ import uk.bl.dpt.qa.flint.pdf.checks.FixedCategories;
 import uk.bl.dpt.qa.flint.pdf.checks.PolicyValidation;
 import uk.bl.dpt.qa.flint.pdf.checks.SpecificDrmChecks;
 import uk.bl.dpt.qa.flint.pdf.checks.Wellformedness;
+import uk.bl.dpt.qa.flint.wrappers.PdfAnalysisContext;
 
-import javax.xml.transform.stream.StreamSource;
 import java.io.File;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -57,13 +57,17 @@ import java.util.TreeSet;
  * - LockLizard and HYPrLock emcapsulate pdfs in to a different drm-ed format
  * - Seems most PDF DRM uses Adobe Digital Editions
  */
-public class PDFFormat extends PolicyAware implements Format, HadoopFormat {
+public class PDFFormat extends PolicyAware implements Format, FileTypeAware, HadoopFormat {
 
     private final static String SCH_POLICY = "/pdf-policy-validate/pdf_policy_preflight_test.sch";
 
     // when does a wrapper's task timeout [seconds]
     private final static long WRAPPER_TIMEOUT = 10 * 60;
 
+    private final static Set<String> MIME_TYPES = Collections.singleton("application/pdf");
+
+    private final static Set<String> EXTENSIONS = Collections.singleton("pdf");
+
     @SuppressWarnings("serial")
     @Override
     public Map<String, Map<String, Set<String>>> getFixedCategories() {
@@ -92,27 +96,28 @@ public class PDFFormat extends PolicyAware implements Format, HadoopFormat {
 
     @Override
     public Collection<String> getAllCategoryNames() throws Exception {
-        Collection<String> cats = new ArrayList<String>();
-        cats.addAll(getFixedCategories().keySet());
-        // add a potential policy validation error to all category names
-        cats.add(FixedCategories.POLICY_VALIDATION.toString());
-        cats.addAll(requestPolicyPatternNames(new StreamSource(getPolicy())));
-        return cats;
+        return policyCategoryNames(getFixedCategories().keySet(), FixedCategories.POLICY_VALIDATION.toString());
     }
 
     @Override
     public CheckResult validationResult(File contentFile) {
         CheckResult checkResult;
+        CompiledPolicy policy;
         try {
             checkResult = new CheckResult(contentFile.getName(), this.getFormatName(), this.getVersion(), getAllCategoryNames());
+            policy = getCompiledPolicy();
         } catch (Exception e) {
             throw new RuntimeException("could not initialise check-result! reason: "+e);
         }
         Long startTime = System.currentTimeMillis();
 
-        checkResult.addAll(TimedValidation.validate(new PolicyValidation(WRAPPER_TIMEOUT, patternFilter), contentFile));
-        checkResult.addAll(TimedValidation.validate(new SpecificDrmChecks(WRAPPER_TIMEOUT, patternFilter), contentFile));
-        checkResult.addAll(TimedValidation.validate(new Wellformedness(WRAPPER_TIMEOUT, patternFilter), contentFile));
+        // all checks share one analysis context, so every library parses the file only once,
+        // and run at the same time; the context is closed once all of them are done with it
+        PdfAnalysisContext context = new PdfAnalysisContext(contentFile);
+        checkResult.addAll(TimedValidation.validateAll(Arrays.asList(
+                new PolicyValidation(WRAPPER_TIMEOUT, policy, context),
+                new SpecificDrmChecks(WRAPPER_TIMEOUT, patternFilter, context),
+                new Wellformedness(WRAPPER_TIMEOUT, patternFilter, context)), contentFile, context));
 
         checkResult.setTime(System.currentTimeMillis() - startTime);
         logger.info("all checks done for {}", this.getFormatName());
@@ -127,12 +132,17 @@ public class PDFFormat extends PolicyAware implements Format, HadoopFormat {
 
     @Override
     public boolean canCheck(String mType) {
-        return (mType != null && acceptedMimeTypes().contains(mType));
+        return (mType != null && MIME_TYPES.contains(mType));
     }
 
     @Override
     public Collection<String> acceptedMimeTypes() {
-        return new HashSet<String>() {{ add("application/pdf"); }};
+        return MIME_TYPES;
+    }
+
+    @Override
+    public Collection<String> acceptedExtensions() {
+        return EXTENSIONS;
     }
 
     @Override
@@ -7,11 +7,12 @@ import uk.bl.dpt.qa.flint.Flint;
 import uk.bl.dpt.qa.flint.checks.CheckResult;
 import uk.bl.dpt.qa.flint.pdf.converter.PDFToText;
 import uk.bl.dpt.qa.flint.wrappers.Tools;
-import uk.bl.dpt.utils.checksum.ChecksumUtil;
+import uk.bl.dpt.qa.flint.wrappers.ZipPackager;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import org.apache.hadoop.fs.Path;
 import java.util.HashMap;
@@ -41,7 +42,7 @@ public class PDFMapTasks implements AdditionalMapTasks {
     }
 
     /**
-     * Extracts text from a PDF and links it to its generated checksum.
+     * Extracts text from a PDF; its checksum is generated when it is zipped.
      *
      * @param localFile the file to extract text from
      * @param generatedFiles the list of generated files to which the extracted text-file belongs
@@ -51,53 +52,70 @@ public class PDFMapTasks implements AdditionalMapTasks {
         File fileTXT = new File(localFile.getAbsolutePath() + ".txt");
         textExtractSuccess = PDFToText.process(localFile, fileTXT);
         generatedFiles.add(fileTXT.getName());
-        try {
-            checksums.put(fileTXT.getName(), ChecksumUtil.generateChecksum(fileTXT.getAbsolutePath()));
-        } catch (IOException e) {
-            LOGGER.error("Caught IOException while trying to extract text: {}", e);
-        }
         LOGGER.debug("txt: {}, size: {}", fileTXT.getAbsolutePath(), fileTXT.length());
     }
 
     /**
-     * Prints the check-results as xml to a file, which is zipped, linked to its checksum
-     * and saved to HDFS.
+     * Prints the check-results as xml to a file, which is zipped together with the other
+     * generated files, linked to their checksums and written straight to HDFS.
      *
      * @param hdFS the hadoop filesystem
      * @param localTempDir the temporary directory on the local node
      * @param outputDir the directory to write to on HDFS
      * @param localFile the file of concern that just got checked
      * @param generatedFiles the list of generated files to which the zipped xml-file belongs
-     * @param checksums the Map linking the checksums to the zipfile
+     * @param checksums the Map the checksums of the generated files are added to
      * @param results a list of check results
      */
     public void zipFlint(FileSystem hdFS, File localTempDir, File localFile, Path outputDir,
                          List<String> generatedFiles, Map<String, String> checksums,
                          List<CheckResult> results) {
         File fileXML = new File(localFile.getAbsolutePath() + ".report.xml");
-        File fileZIP = new File(localFile.getAbsolutePath() + ".zip");
+        Path zipPath = new Path(outputDir, localFile.getName() + ".zip");
+        boolean created = false;
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new FileWriter(fileXML));
             Flint.printResults(results, pw);
+            // the report has to be complete before it is zipped
+            pw.close();
             generatedFiles.add(fileXML.getName());
-            checksums.put(fileXML.getName(), ChecksumUtil.generateChecksum(fileXML.getAbsolutePath()));
             LOGGER.debug("xml: {}, size: {}", fileXML.getAbsolutePath(), fileXML.length());
-            Tools.zipGeneratedFiles(textExtractSuccess, checksums, generatedFiles, fileZIP.getAbsolutePath(), localTempDir.getAbsolutePath() + "/");
+
+            // every file is read once for its checksum and crc, and once more to copy it into the zip
+            ZipPackager zip = new ZipPackager(textExtractSuccess);
+            for (String file : generatedFiles) {
+                File generated = new File(localTempDir, file);
+                //file does not exist - obvious error condition but continue anyhow
+                if (!generated.exists()) continue;
+                String md5 = zip.addFile(generated, Tools.entryName(file));
+                checksums.put(file, "md5:" + md5);
+                //the report is in the zip, but not in the manifest
+                if (!file.endsWith(".report.xml")) zip.addToManifest(md5, "data/" + file);
+            }
+
+            // store zip file
+            OutputStream out = hdFS.create(zipPath, false);
+            created = true;
+            try {
+                zip.writeTo(out);
+            } finally {
+                out.close();
+            }
+            created = false;
         } catch (IOException e) {
-            LOGGER.error("Caught IOException while trying to zip xml to checksums: {}", e);
+            LOGGER.error("Caught IOException while trying to zip generated files to HDFS: {}", e);
         } finally {
             if (pw != null) pw.close();
             if (localFile.exists()) localFile.delete();
             if (fileXML.exists()) fileXML.delete();
-            if (fileZIP.exists()) {
-                // store zip file
+            if (created) {
+                // don't leave a broken zip behind
                 try {
-                    hdFS.copyFromLocalFile(false, false, new Path(fileZIP.getAbsolutePath()), outputDir);
+                    hdFS.delete(zipPath, false);
                 } catch (IOException e) {
-                    LOGGER.error("Caught IOException while trying to copy zip-file to HDFS: {}", e);
+                    LOGGER.error("Caught IOException while trying to delete incomplete zip-file {}: {}", zipPath, e);
                 }
-                fileZIP.delete();
             }
         }
     }
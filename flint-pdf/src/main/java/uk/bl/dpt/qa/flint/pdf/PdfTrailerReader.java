@@ -0,0 +1,579 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.pdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads just enough of a PDF to find out whether it is encrypted: the cross-reference
+ * sections and trailers, starting from the end of the file and following /Prev (and
+ * /XRefStm) back through incremental updates, and the encryption dictionary if there is one.
+ * Both cross-reference tables and (Flate encoded) cross-reference streams are understood.
+ *
+ * This is much cheaper than having a PDF library build the document model, but only
+ * works for files whose cross-references are intact; for all others null is returned
+ * and the libraries have to be asked.  The same goes for files that would make the
+ * reader exceed its limits on stream sizes and nesting, which no sane trailer needs.
+ */
+public final class PdfTrailerReader {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PdfTrailerReader.class);
+
+    // how far from the end of the file "startxref" is looked for
+    private static final int STARTXREF_SEARCH = 2048;
+
+    // a broken /Prev chain must not make us loop
+    private static final int MAX_SECTIONS = 1024;
+
+    // an inflated cross-reference stream of 8 MB lists well over a million objects
+    private static final int MAX_INFLATED = 8 * 1024 * 1024;
+
+    // how deep arrays and dictionaries may be nested
+    private static final int MAX_DEPTH = 32;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] STARTXREF = bytes("startxref");
+
+    private static final byte[] XREF = bytes("xref");
+
+    private final ByteBuffer buf;
+    private int pos;
+    private int depth = 0;
+
+    // object number -> offset of the object, the newest section wins
+    private final Map<Long, Long> offsets = new HashMap<Long, Long>();
+
+    /**
+     * What the trailer says about encryption
+     */
+    public static final class Encryption {
+        private final boolean encrypted;
+        private final String filter;
+        private final Long permissions;
+
+        Encryption(boolean pEncrypted, String pFilter, Long pPermissions) {
+            this.encrypted = pEncrypted;
+            this.filter = pFilter;
+            this.permissions = pPermissions;
+        }
+
+        /**
+         * @return whether a trailer refers to an encryption dictionary
+         */
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        /**
+         * @return the name of the security handler (e.g. "Standard"), or null if unknown
+         */
+        public String getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return the permission bits (/P) of the encryption dictionary, or null if unknown
+         */
+        public Long getPermissions() {
+            return permissions;
+        }
+
+        @Override
+        public String toString() {
+            return encrypted ? "encrypted, filter: " + filter + ", permissions: " + permissions : "not encrypted";
+        }
+    }
+
+    private PdfTrailerReader(ByteBuffer pBytes) {
+        this.buf = pBytes;
+    }
+
+    /**
+     * Read the encryption information of a PDF from its trailers
+     * @param pBytes the bytes of the whole file; the buffer's position is not changed
+     * @return the encryption information, or null if the cross-references can't be read
+     */
+    public static Encryption read(ByteBuffer pBytes) {
+        try {
+            return new PdfTrailerReader(pBytes).read();
+        } catch (RuntimeException e) {
+            // anything unexpected in the file, e.g. an offset pointing nowhere
+            LOGGER.debug("can't read the trailer: {}", e.toString());
+            return null;
+        } catch (DataFormatException e) {
+            LOGGER.debug("can't inflate a cross-reference stream: {}", e.toString());
+            return null;
+        } catch (OutOfMemoryError e) {
+            LOGGER.warn("not enough memory to read the trailer: {}", e.toString());
+            return null;
+        } catch (StackOverflowError e) {
+            LOGGER.warn("trailer nested too deeply: {}", e.toString());
+            return null;
+        }
+    }
+
+    private Encryption read() throws DataFormatException {
+        long start = findStartXref();
+        if (start < 0) return null;
+
+        Object encrypt = null;
+        Deque<Long> sections = new ArrayDeque<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        sections.add(start);
+        while (!sections.isEmpty()) {
+            long offset = sections.poll();
+            if (!seen.add(offset) || seen.size() > MAX_SECTIONS) continue;
+            Map<String, Object> trailer = readSection(offset);
+            if (trailer == null) return null;
+            if (encrypt == null) encrypt = trailer.get("Encrypt");
+            // a hybrid file's stream has to be read before the older sections
+            if (trailer.get("XRefStm") instanceof Long) sections.addFirst((Long) trailer.get("XRefStm"));
+            if (trailer.get("Prev") instanceof Long) sections.addLast((Long) trailer.get("Prev"));
+        }
+        if (encrypt == null) return new Encryption(false, null, null);
+
+        Object dict = encrypt instanceof Ref ? resolve((Ref) encrypt) : encrypt;
+        if (!(dict instanceof Map)) return new Encryption(true, null, null);
+        Map<?, ?> encryptDict = (Map<?, ?>) dict;
+        Object filter = encryptDict.get("Filter");
+        Object p = encryptDict.get("P");
+        return new Encryption(true, filter instanceof Name ? filter.toString() : null, p instanceof Long ? (Long) p : null);
+    }
+
+    private long findStartXref() {
+        int limit = buf.limit();
+        for (int i = limit - STARTXREF.length; i >= Math.max(0, limit - STARTXREF_SEARCH); i--) {
+            if (matches(i, STARTXREF)) {
+                pos = i + STARTXREF.length;
+                Object offset = readObject();
+                return offset instanceof Long ? (Long) offset : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a cross-reference table or stream
+     * @param pOffset where it starts
+     * @return its trailer dictionary, or null if there is no cross-reference section
+     */
+    private Map<String, Object> readSection(long pOffset) throws DataFormatException {
+        pos = (int) pOffset;
+        skipWhitespace();
+        if (matches(pos, XREF)) {
+            pos += 4;
+            return readTable();
+        }
+        Object num = readObject();
+        Object gen = readObject();
+        Object keyword = readObject();
+        if (num instanceof Long && gen instanceof Long && keyword instanceof Keyword && "obj".equals(keyword.toString())) {
+            Object dict = readObject();
+            if (dict instanceof Map && "XRef".equals(String.valueOf(((Map<?, ?>) dict).get("Type")))) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> trailer = (Map<String, Object>) dict;
+                return readStream(trailer) ? trailer : null;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> readTable() {
+        while (true) {
+            Object first = readObject();
+            if (first instanceof Keyword && "trailer".equals(first.toString())) break;
+            Object count = readObject();
+            if (!(first instanceof Long && count instanceof Long)) return null;
+            long num = (Long) first;
+            for (long i = 0; i < (Long) count; i++) {
+                Object offset = readObject();
+                readObject();
+                Object type = readObject();
+                if (!(offset instanceof Long && type instanceof Keyword)) return null;
+                if ("n".equals(type.toString()) && !offsets.containsKey(num + i)) {
+                    offsets.put(num + i, (Long) offset);
+                }
+            }
+        }
+        Object trailer = readObject();
+        if (!(trailer instanceof Map)) return null;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> dict = (Map<String, Object>) trailer;
+        return dict;
+    }
+
+    private boolean readStream(Map<String, Object> pDict) throws DataFormatException {
+        byte[] data = streamData(pDict);
+        if (data == null) return false;
+        Object w = pDict.get("W");
+        if (!(w instanceof List) || ((List<?>) w).size() != 3) return false;
+        int[] widths = new int[3];
+        for (int i = 0; i < 3; i++) {
+            Object width = ((List<?>) w).get(i);
+            if (!(width instanceof Long)) return false;
+            widths[i] = (int) (long) (Long) width;
+        }
+        List<?> index = pDict.get("Index") instanceof List ? (List<?>) pDict.get("Index")
+                : Arrays.asList(0L, pDict.get("Size"));
+        int entry = widths[0] + widths[1] + widths[2];
+        int at = 0;
+        for (int s = 0; s + 1 < index.size(); s += 2) {
+            if (!(index.get(s) instanceof Long && index.get(s + 1) instanceof Long)) return false;
+            long num = (Long) index.get(s);
+            for (long i = 0; i < (Long) index.get(s + 1) && at + entry <= data.length; i++, at += entry) {
+                // a missing type field means type 1
+                long type = widths[0] == 0 ? 1 : field(data, at, widths[0]);
+                if (type == 1 && !offsets.containsKey(num + i)) {
+                    offsets.put(num + i, field(data, at + widths[0], widths[1]));
+                }
+            }
+        }
+        return true;
+    }
+
+    private byte[] streamData(Map<String, Object> pDict) throws DataFormatException {
+        Object keyword = readObject();
+        if (!(keyword instanceof Keyword) || !"stream".equals(keyword.toString())) return null;
+        // the data starts after the end of line following "stream"
+        if (buf.get(pos) == '\r') pos++;
+        if (buf.get(pos) == '\n') pos++;
+        Object length = pDict.get("Length");
+        if (!(length instanceof Long) || (Long) length < 0) return null;
+        // the stream can't go on beyond the end of the file, whatever it says
+        byte[] raw = new byte[(int) Math.min((Long) length, buf.limit() - pos)];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = buf.get(pos + i);
+        }
+        Object filter = pDict.get("Filter");
+        if (filter instanceof List && ((List<?>) filter).size() == 1) filter = ((List<?>) filter).get(0);
+        if (filter == null) return raw;
+        if (!"FlateDecode".equals(filter.toString())) return null;
+        byte[] data = inflate(raw);
+        Object parms = pDict.get("DecodeParms");
+        if (parms instanceof List && ((List<?>) parms).size() == 1) parms = ((List<?>) parms).get(0);
+        if (parms instanceof Map) {
+            Object predictor = ((Map<?, ?>) parms).get("Predictor");
+            Object columns = ((Map<?, ?>) parms).get("Columns");
+            if (predictor instanceof Long && (Long) predictor >= 10) {
+                data = unpredict(data, columns instanceof Long ? (int) (long) (Long) columns : 1);
+            } else if (predictor instanceof Long && (Long) predictor != 1) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    private Object resolve(Ref pRef) {
+        Long offset = offsets.get(pRef.num);
+        if (offset == null) return null;
+        pos = (int) (long) offset;
+        Object num = readObject();
+        readObject();
+        Object keyword = readObject();
+        if (!(num instanceof Long) || (Long) num != pRef.num || !(keyword instanceof Keyword)) return null;
+        return readObject();
+    }
+
+    private static byte[] inflate(byte[] pData) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(pData);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(pData.length * 4L, MAX_INFLATED));
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                if (out.size() + n > MAX_INFLATED) {
+                    throw new DataFormatException("cross-reference stream inflates to more than " + MAX_INFLATED + " bytes");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Undo the PNG predictors; every row starts with the number of the predictor used for it
+     */
+    private static byte[] unpredict(byte[] pData, int pColumns) {
+        int rows = pData.length / (pColumns + 1);
+        byte[] out = new byte[rows * pColumns];
+        for (int r = 0; r < rows; r++) {
+            int type = pData[r * (pColumns + 1)] & 0xff;
+            for (int c = 0; c < pColumns; c++) {
+                int raw = pData[r * (pColumns + 1) + 1 + c] & 0xff;
+                int left = c > 0 ? out[r * pColumns + c - 1] & 0xff : 0;
+                int up = r > 0 ? out[(r - 1) * pColumns + c] & 0xff : 0;
+                int upLeft = (r > 0 && c > 0) ? out[(r - 1) * pColumns + c - 1] & 0xff : 0;
+                int value;
+                switch (type) {
+                    case 0: value = raw; break;
+                    case 1: value = raw + left; break;
+                    case 2: value = raw + up; break;
+                    case 3: value = raw + ((left + up) >> 1); break;
+                    case 4: value = raw + paeth(left, up, upLeft); break;
+                    default: throw new IllegalArgumentException("unknown PNG predictor " + type);
+                }
+                out[r * pColumns + c] = (byte) value;
+            }
+        }
+        return out;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        return (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+    }
+
+    private static long field(byte[] pData, int pAt, int pWidth) {
+        long value = 0;
+        for (int i = 0; i < pWidth; i++) {
+            value = (value << 8) | (pData[pAt + i] & 0xff);
+        }
+        return value;
+    }
+
+    // --- a minimal reader of PDF objects ---
+
+    /**
+     * A keyword such as obj, R, trailer, stream, n or f
+     */
+    private static final class Keyword {
+        private final String word;
+
+        Keyword(String pWord) {
+            this.word = pWord;
+        }
+
+        @Override
+        public String toString() {
+            return word;
+        }
+    }
+
+    /**
+     * A name, without the leading slash
+     */
+    private static final class Name {
+        private final String name;
+
+        Name(String pName) {
+            this.name = pName;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * An indirect reference
+     */
+    private static final class Ref {
+        private final long num;
+
+        Ref(long pNum) {
+            this.num = pNum;
+        }
+    }
+
+    private Object readObject() {
+        skipWhitespace();
+        int c = buf.get(pos) & 0xff;
+        switch (c) {
+            case '<':
+                if (buf.get(pos + 1) == '<') {
+                    pos += 2;
+                    return readDictionary();
+                }
+                return readHexString();
+            case '[':
+                pos++;
+                return readArray();
+            case '(':
+                return readString();
+            case '/':
+                pos++;
+                return new Name(readToken());
+            default:
+                if (c == '+' || c == '-' || c == '.' || (c >= '0' && c <= '9')) return readNumberOrRef();
+                String token = readToken();
+                if (token.isEmpty()) throw new IllegalStateException("unexpected character " + c + " at " + pos);
+                if ("true".equals(token) || "false".equals(token)) return Boolean.valueOf(token);
+                if ("null".equals(token)) return null;
+                return new Keyword(token);
+        }
+    }
+
+    private Map<String, Object> readDictionary() {
+        enter();
+        Map<String, Object> dict = new LinkedHashMap<String, Object>();
+        while (true) {
+            skipWhitespace();
+            if (buf.get(pos) == '>' && buf.get(pos + 1) == '>') {
+                pos += 2;
+                depth--;
+                return dict;
+            }
+            Object key = readObject();
+            if (!(key instanceof Name)) throw new IllegalStateException("dictionary key expected at " + pos);
+            dict.put(key.toString(), readObject());
+        }
+    }
+
+    private List<Object> readArray() {
+        enter();
+        List<Object> array = new ArrayList<Object>();
+        while (true) {
+            skipWhitespace();
+            if (buf.get(pos) == ']') {
+                pos++;
+                depth--;
+                return array;
+            }
+            array.add(readObject());
+        }
+    }
+
+    /**
+     * Go one level deeper into arrays and dictionaries; a broken read isn't continued,
+     * so the level is only given back on success
+     */
+    private void enter() {
+        if (++depth > MAX_DEPTH) throw new IllegalStateException("objects nested more than " + MAX_DEPTH + " deep at " + pos);
+    }
+
+    private byte[] readString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int depth = 0;
+        pos++;
+        while (true) {
+            byte b = buf.get(pos++);
+            if (b == '\\') {
+                out.write(buf.get(pos++));
+                continue;
+            }
+            if (b == '(') depth++;
+            if (b == ')' && depth-- == 0) return out.toByteArray();
+            out.write(b);
+        }
+    }
+
+    private byte[] readHexString() {
+        pos++;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (buf.get(pos) != '>') {
+            out.write(buf.get(pos++));
+        }
+        pos++;
+        return out.toByteArray();
+    }
+
+    private Object readNumberOrRef() {
+        String token = readToken();
+        if (token.indexOf('.') >= 0) return Double.valueOf(token);
+        Long number = Long.valueOf(token);
+        // "num gen R" is a reference
+        int mark = pos;
+        skipWhitespace();
+        String gen = (pos < buf.limit() && isDigit(buf.get(pos))) ? readToken() : "";
+        if (!gen.isEmpty()) {
+            skipWhitespace();
+            if (pos < buf.limit() && buf.get(pos) == 'R' && (pos + 1 == buf.limit() || isDelimiter(buf.get(pos + 1)))) {
+                pos++;
+                return new Ref(number);
+            }
+        }
+        pos = mark;
+        return number;
+    }
+
+    private String readToken() {
+        int start = pos;
+        while (pos < buf.limit() && !isDelimiter(buf.get(pos))) pos++;
+        byte[] token = new byte[pos - start];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = buf.get(start + i);
+        }
+        return new String(token, LATIN1);
+    }
+
+    private void skipWhitespace() {
+        while (pos < buf.limit()) {
+            byte b = buf.get(pos);
+            if (b == '%') {
+                while (pos < buf.limit() && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+            } else if (isWhitespace(b)) {
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean matches(int pAt, byte[] pBytes) {
+        if (pAt < 0 || pAt + pBytes.length > buf.limit()) return false;
+        for (int i = 0; i < pBytes.length; i++) {
+            if (buf.get(pAt + i) != pBytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return isWhitespace(b) || b == '(' || b == ')' || b == '<' || b == '>' || b == '['
+                || b == ']' || b == '{' || b == '}' || b == '/' || b == '%';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] bytes(String pString) {
+        byte[] b = new byte[pString.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) pString.charAt(i);
+        }
+        return b;
+    }
+}
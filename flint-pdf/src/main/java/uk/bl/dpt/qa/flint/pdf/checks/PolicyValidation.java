@@ -21,13 +21,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.bl.dpt.qa.flint.checks.CheckCategory;
 import uk.bl.dpt.qa.flint.checks.TimedTask;
+import uk.bl.dpt.qa.flint.formats.CompiledPolicy;
 import uk.bl.dpt.qa.flint.formats.PDFFormat;
 import uk.bl.dpt.qa.flint.formats.PolicyAware;
 import uk.bl.dpt.qa.flint.wrappers.PDFBoxWrapper;
+import uk.bl.dpt.qa.flint.wrappers.PdfAnalysisContext;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.LinkedHashMap;
 import java.util.Set;
 
@@ -39,6 +41,8 @@ public class PolicyValidation extends TimedTask {
 
     private Logger logger;
     private Set<String> patternFilter;
+    private CompiledPolicy policy;
+    private PdfAnalysisContext context;
 
     /**
      * Constructor for PolicyValidation.
@@ -49,16 +53,51 @@ public class PolicyValidation extends TimedTask {
      *                      in following operations.
      */
     public PolicyValidation(long timeout, Set<String> patternFilter) {
+        this(timeout, patternFilter, null);
+    }
+
+    /**
+     * Constructor for PolicyValidation.
+     *
+     * @param timeout the time [s] after which a TimeOutException is thrown and logged as
+     *                an 'erroneous' {@link uk.bl.dpt.qa.flint.checks.CheckCategory}
+     * @param patternFilter a set of strings that represent patterns to be included
+     *                      in following operations.
+     * @param context the analysis context shared with the other checks of the file,
+     *                or null to read the file just for this validation
+     */
+    public PolicyValidation(long timeout, Set<String> patternFilter, PdfAnalysisContext context) {
         super(FixedCategories.POLICY_VALIDATION.toString(), timeout);
         this.patternFilter = patternFilter;
+        this.context = context;
         this.logger = LoggerFactory.getLogger(this.getClass());
     }
 
+    /**
+     * Constructor for PolicyValidation.
+     *
+     * @param timeout the time [s] after which a TimeOutException is thrown and logged as
+     *                an 'erroneous' {@link uk.bl.dpt.qa.flint.checks.CheckCategory}
+     * @param policy the policy compiled for the format's pattern filter
+     * @param context the analysis context shared with the other checks of the file,
+     *                or null to read the file just for this validation
+     */
+    public PolicyValidation(long timeout, CompiledPolicy policy, PdfAnalysisContext context) {
+        this(timeout, (Set<String>) null, context);
+        this.policy = policy;
+    }
+
     @Override
     public LinkedHashMap<String, CheckCategory> call() throws Exception {
         logger.info("Performing a policy validation on {}", contentFile);
-        ByteArrayOutputStream outputXml = PDFBoxWrapper.preflightToXml(contentFile);
-        return PolicyAware.policyValidationResult(new StreamSource(new ByteArrayInputStream(outputXml.toByteArray())),
+        // the preflight result kept in the context is handed over as a document, which the
+        // compiled policy writes out for the validator once, without indentation
+        Source outputXml = (context != null) ? PDFBoxWrapper.preflightToSource(context) :
+                new StreamSource(new ByteArrayInputStream(PDFBoxWrapper.preflightToXml(contentFile).toByteArray()));
+        if (policy != null) {
+            return policy.validate(outputXml);
+        }
+        return PolicyAware.policyValidationResult(outputXml,
                 new StreamSource(PDFFormat.getPolicyStatically()), patternFilter);
     }
 
@@ -22,15 +22,15 @@ import org.slf4j.LoggerFactory;
 import uk.bl.dpt.qa.flint.checks.CheckCategory;
 import uk.bl.dpt.qa.flint.checks.CheckCheck;
 import uk.bl.dpt.qa.flint.checks.TimedTask;
+import uk.bl.dpt.qa.flint.pdf.PdfTrailerReader;
 import uk.bl.dpt.qa.flint.wrappers.PDFBoxWrapper;
+import uk.bl.dpt.qa.flint.wrappers.PdfAnalysisContext;
 import uk.bl.dpt.qa.flint.wrappers.iTextWrapper;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
-import java.util.Scanner;
 import java.util.Set;
 
 /**
@@ -39,8 +39,17 @@ import java.util.Set;
  */
 public class SpecificDrmChecks extends TimedTask {
 
+    // "/encrypt", matched ignoring case; all but the slash are lower case letters
+    private static final byte[] ENCRYPT = {'/', 'e', 'n', 'c', 'r', 'y', 'p', 't'};
+
+    // the trailer, or the cross-reference stream, with the /Encrypt entry is at the end of
+    // the file, so that's where the search starts
+    private static final int TAIL_SIZE = 64 * 1024;
+
     private Logger logger;
     private Set<String> patternFilter;
+    private PdfAnalysisContext context;
+    private volatile PdfAnalysisContext ownContext;
 
     /**
      * Create a SpeficDRMChecks Object that times out if calls take longer than expected
@@ -48,8 +57,20 @@ public class SpecificDrmChecks extends TimedTask {
      * @param pPatternFilter a set of strings indicating which categories to use and not
      */
     public SpecificDrmChecks(long pTimeout, Set<String> pPatternFilter) {
+        this(pTimeout, pPatternFilter, null);
+    }
+
+    /**
+     * Create a SpeficDRMChecks Object that times out if calls take longer than expected
+     * @param pTimeout timeout to use
+     * @param pPatternFilter a set of strings indicating which categories to use and not
+     * @param pContext the analysis context shared with the other checks of the file,
+     *                 or null to read the file just for these checks
+     */
+    public SpecificDrmChecks(long pTimeout, Set<String> pPatternFilter, PdfAnalysisContext pContext) {
         super(FixedCategories.NO_DRM.toString(), pTimeout);
         this.patternFilter = pPatternFilter;
+        this.context = pContext;
         this.logger = LoggerFactory.getLogger(this.getClass());
     }
 
@@ -58,53 +79,129 @@ public class SpecificDrmChecks extends TimedTask {
         LinkedHashMap<String, CheckCategory> cmap = new LinkedHashMap<String, CheckCategory>();
         if (patternFilter == null || patternFilter.contains(FixedCategories.NO_DRM.toString()) ) {
             logger.info("Adding specific DRM checks for {} to check-result", contentFile);
-            CheckCategory cc = new CheckCategory(FixedCategories.NO_DRM.toString());
-            cc.add(new CheckCheck("checkDRMPDFBoxAbsolute", !PDFBoxWrapper.hasDRM(contentFile), null));
-            logger.debug(cc.get("checkDRMPDFBoxAbsolute").toString());
-            cc.add(new CheckCheck("checkDRMPDFBoxGranular", !PDFBoxWrapper.hasDRMGranular(contentFile), null));
-            logger.debug(cc.get("checkDRMPDFBoxGranular").toString());
-            cc.add(new CheckCheck("checkDRMNaiive", !checkDRMNaiive(contentFile), null));
-            logger.debug(cc.get("checkDRMNaiive").toString());
-            cc.add(new CheckCheck("checkDRM_iText", !iTextWrapper.hasDRM(contentFile), null));
-            logger.debug(cc.get("checkDRM_iText").toString());
-            cmap.put(cc.getName(), cc);
+            PdfAnalysisContext ctx = context;
+            if (ctx == null) ctx = ownContext = new PdfAnalysisContext(contentFile);
+            try {
+                // without an encryption dictionary in the trailers the libraries can't find any
+                // DRM either, so they are only asked to load the document if there is one, or
+                // if the trailers can't be read
+                PdfTrailerReader.Encryption encryption = readTrailer(ctx);
+                boolean unencrypted = encryption != null && !encryption.isEncrypted();
+                CheckCategory cc = new CheckCategory(FixedCategories.NO_DRM.toString());
+                cc.add(new CheckCheck("checkDRMPDFBoxAbsolute", unencrypted || !PDFBoxWrapper.hasDRM(ctx), null));
+                logger.debug(cc.get("checkDRMPDFBoxAbsolute").toString());
+                cc.add(new CheckCheck("checkDRMPDFBoxGranular", unencrypted || !PDFBoxWrapper.hasDRMGranular(ctx), null));
+                logger.debug(cc.get("checkDRMPDFBoxGranular").toString());
+                cc.add(new CheckCheck("checkDRMNaiive", !checkDRMNaiive(ctx), null));
+                logger.debug(cc.get("checkDRMNaiive").toString());
+                cc.add(new CheckCheck("checkDRM_iText", unencrypted || !iTextWrapper.hasDRM(ctx), null));
+                logger.debug(cc.get("checkDRM_iText").toString());
+                cmap.put(cc.getName(), cc);
+            } finally {
+                if (ctx != context) ctx.close();
+            }
         }
         return cmap;
     }
 
+    @Override
+    public void abort() {
+        // a shared context is closed by TimedValidation once all checks of the file let go of it
+        PdfAnalysisContext ctx = ownContext;
+        if (ctx != null) ctx.close();
+    }
+
+    /**
+     * Read the encryption information from the trailers of the file
+     * @param pContext the analysis context of the input-file
+     * @return the encryption information, or null if the trailers can't be read
+     */
+    private PdfTrailerReader.Encryption readTrailer(PdfAnalysisContext pContext) {
+        try {
+            ByteBuffer bytes = pContext.getBytes();
+            PdfTrailerReader.Encryption encryption = (bytes == null) ? null : PdfTrailerReader.read(bytes);
+            logger.debug("trailer of {}: {}", contentFile, encryption);
+            return encryption;
+        } catch (IOException e) {
+            logger.warn("can't read the trailer of {}: {}", contentFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Search for /encrypt in the bytes of a file, the end of the file first
+     * NOTE: this might be found in content but if we're being conservative it might be useful
+     * @param pBytes the bytes of the file
+     * @return true if /encrypt found
+     */
+    static boolean checkDRMNaiive(ByteBuffer pBytes) {
+        int limit = pBytes.limit();
+        int tail = Math.max(0, limit - TAIL_SIZE);
+        // the rest overlaps the tail by one byte less than the keyword, so nothing is missed at the border
+        return indexOfEncrypt(pBytes, tail, limit) >= 0
+                || indexOfEncrypt(pBytes, 0, Math.min(limit, tail + ENCRYPT.length - 1)) >= 0;
+    }
+
     /**
      * Search for /encrypt in file
      * NOTE: this might be found in content but if we're being conservative it might be useful
      * @param pStream input-stream
      * @return true if /encrypt found
+     * @throws IOException
      */
-    private static boolean checkDRMNaiive(InputStream pStream) {
-
-        Scanner scanner = new Scanner(pStream);
-
-        //just try and find the first occurrence of /encrypt (note that this might actually be in the content)
-        //scanner.findWithinHorizon("/[rR][oO][oO][tT]", 0);
-        String found = scanner.findWithinHorizon("/[eE][nN][cC][rR][yY][pP][tT]", 0);
-
-        //System.out.println("Scanner found: "+(found!=null?"yes":"no"));
-
-        boolean ret = found!=null && found.length() > 0;
-
-        scanner.close();
+    static boolean checkDRMNaiive(InputStream pStream) throws IOException {
+        byte[] buf = new byte[256 * 1024];
+        ByteBuffer bytes = ByteBuffer.wrap(buf);
+        int kept = 0;
+        int read;
+        while ((read = pStream.read(buf, kept, buf.length - kept)) != -1) {
+            int length = kept + read;
+            if (indexOfEncrypt(bytes, 0, length) >= 0) return true;
+            // keep the end of the chunk, it might hold the start of the keyword
+            kept = Math.min(length, ENCRYPT.length - 1);
+            System.arraycopy(buf, length - kept, buf, 0, kept);
+        }
+        return false;
+    }
 
-        return ret;
+    /**
+     * Find /encrypt, ignoring case, in a range of bytes
+     * @param pBytes the bytes
+     * @param pFrom index of the first byte to search
+     * @param pTo index after the last byte to search
+     * @return the index of the keyword, or -1 if it isn't found
+     */
+    private static int indexOfEncrypt(ByteBuffer pBytes, int pFrom, int pTo) {
+        int last = pTo - ENCRYPT.length;
+        for (int i = pFrom; i <= last; i++) {
+            if (pBytes.get(i) != '/') continue;
+            int j = 1;
+            // setting bit 5 turns an upper case letter into lower case, and no other byte into one
+            while (j < ENCRYPT.length && (pBytes.get(i + j) | 0x20) == ENCRYPT[j]) j++;
+            if (j == ENCRYPT.length) return i;
+        }
+        return -1;
     }
 
     /**
-     * Search for /encrypt in file
+     * Search for /encrypt in file, using the mapped bytes of the file if it could be mapped
      * NOTE: this might be found in content but if we're being conservative it might be useful
-     * @param contentFile input-file
+     * @param pContext the analysis context of the input-file
      * @return true if /encrypt is found
      */
-    private boolean checkDRMNaiive(File contentFile) {
+    private boolean checkDRMNaiive(PdfAnalysisContext pContext) {
         try {
-            return checkDRMNaiive(new FileInputStream(contentFile));
-        } catch (FileNotFoundException e) {
+            ByteBuffer bytes = pContext.getBytes();
+            if (bytes != null) {
+                return checkDRMNaiive(bytes);
+            }
+            InputStream in = pContext.newInputStream();
+            try {
+                return checkDRMNaiive(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
             logger.error(e.getMessage());
         }
         return false;
@@ -26,6 +26,7 @@ import uk.bl.dpt.qa.flint.checks.TimedTask;
 import uk.bl.dpt.qa.flint.wrappers.CalibreWrapper;
 import uk.bl.dpt.qa.flint.wrappers.Jhove1Wrapper;
 import uk.bl.dpt.qa.flint.wrappers.PDFBoxWrapper;
+import uk.bl.dpt.qa.flint.wrappers.PdfAnalysisContext;
 import uk.bl.dpt.qa.flint.wrappers.iTextWrapper;
 
 import java.util.LinkedHashMap;
@@ -39,6 +40,8 @@ public class Wellformedness extends TimedTask {
 
     private Logger logger;
     private Set<String> patternFilter;
+    private PdfAnalysisContext context;
+    private volatile PdfAnalysisContext ownContext;
 
     /**
      * Constructor for Wellformedness.
@@ -49,8 +52,23 @@ public class Wellformedness extends TimedTask {
      *                      in following operations.
      */
     public Wellformedness(long timeout, Set<String> patternFilter) {
+        this(timeout, patternFilter, null);
+    }
+
+    /**
+     * Constructor for Wellformedness.
+     *
+     * @param timeout the time [s] after which a TimeOutException is thrown and logged as
+     *                an 'erroneous' {@link uk.bl.dpt.qa.flint.checks.CheckCategory}
+     * @param patternFilter a set of strings that represent patterns to be included
+     *                      in following operations.
+     * @param context the analysis context shared with the other checks of the file,
+     *                or null to read the file just for these checks
+     */
+    public Wellformedness(long timeout, Set<String> patternFilter, PdfAnalysisContext context) {
         super(FixedCategories.WELL_FORMED.toString(), timeout);
         this.patternFilter = patternFilter;
+        this.context = context;
         this.logger = LoggerFactory.getLogger(this.getClass());
     }
 
@@ -62,12 +80,19 @@ public class Wellformedness extends TimedTask {
             logger.info("Adding additional well-formedness checks for {}", contentFile);
             CheckCategory cc = new CheckCategory(catName);
 
-            cc.add(new CheckCheck("isValidPDFBox", PDFBoxWrapper.isValid(contentFile), null));
-            logger.debug(cc.get("isValidPDFBox").toString());
+            PdfAnalysisContext ctx = context;
+            if (ctx == null) ctx = ownContext = new PdfAnalysisContext(contentFile);
+            try {
+                cc.add(new CheckCheck("isValidPDFBox", PDFBoxWrapper.isValid(ctx), null));
+                logger.debug(cc.get("isValidPDFBox").toString());
 
-            cc.add(new CheckCheck("isValid_iText", iTextWrapper.isValid(contentFile), null));
-            logger.debug(cc.get("isValid_iText").toString());
+                cc.add(new CheckCheck("isValid_iText", iTextWrapper.isValid(ctx), null));
+                logger.debug(cc.get("isValid_iText").toString());
+            } finally {
+                if (ctx != context) ctx.close();
+            }
 
+            // Calibre and Jhove run on the file itself
             if (CalibreWrapper.calibreIsAvailable()) {
                 try {
                     cc.add(new CheckCheck("isValid_Calibre", CalibreWrapper.isValid(contentFile), null));
@@ -89,4 +114,11 @@ public class Wellformedness extends TimedTask {
         }
         return cmap;
     }
+
+    @Override
+    public void abort() {
+        // a shared context is closed by TimedValidation once all checks of the file let go of it
+        PdfAnalysisContext ctx = ownContext;
+        if (ctx != null) ctx.close();
+    }
 }
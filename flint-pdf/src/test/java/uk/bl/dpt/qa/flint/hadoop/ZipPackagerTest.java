@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.hadoop;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.bl.dpt.qa.flint.wrappers.ZipPackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tests for the zips PDFMapTasks packs its results into.
+ */
+@SuppressWarnings("javadoc")
+public class ZipPackagerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file(String pName, byte[] pContent) throws IOException {
+        File file = tmp.newFile(pName);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(pContent);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readAll(InputStream pIn) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = pIn.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            pIn.close();
+        }
+    }
+
+    private static String md5(byte[] pContent) throws Exception {
+        byte[] digest = MessageDigest.getInstance("MD5").digest(pContent);
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+
+    private static long crc(byte[] pContent) {
+        CRC32 crc = new CRC32();
+        crc.update(pContent);
+        return crc.getValue();
+    }
+
+    /**
+     * Pack the given files, with a manifest line for each, and read the zip back
+     * @param pSuccess whether to pack a successful result
+     * @param pToFile whether to write the zip to a file stream rather than any stream
+     * @param pNames names of the files and their entries
+     * @param pContents contents of the files
+     */
+    private void packAndCheck(boolean pSuccess, boolean pToFile, String[] pNames, byte[][] pContents) throws Exception {
+        ZipPackager zip = new ZipPackager(pSuccess);
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < pNames.length; i++) {
+            String md5 = zip.addFile(file(pNames[i], pContents[i]), "data/" + pNames[i]);
+            Assert.assertEquals("md5 of " + pNames[i], md5(pContents[i]), md5);
+            zip.addToManifest(md5, "data/" + pNames[i]);
+            manifest.append(md5).append("  data/").append(pNames[i]).append("\n");
+        }
+
+        File zipFile = new File(tmp.getRoot(), "result.zip");
+        OutputStream out = pToFile ? new FileOutputStream(zipFile) : new ByteArrayOutputStream();
+        try {
+            zip.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!pToFile) {
+            byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+            out = new FileOutputStream(zipFile);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+
+        ZipFile read = new ZipFile(zipFile);
+        try {
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> entries = read.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                Assert.assertEquals("method of " + entry.getName(), ZipEntry.STORED, entry.getMethod());
+                byte[] content = readAll(read.getInputStream(entry));
+                Assert.assertEquals("size of " + entry.getName(), content.length, entry.getSize());
+                Assert.assertEquals("crc of " + entry.getName(), crc(content), entry.getCrc());
+            }
+            List<String> expected = new ArrayList<String>();
+            expected.add(pSuccess ? "SUCCESS" : "FAILURE");
+            expected.add("manifest-md5.txt");
+            for (String name : pNames) {
+                expected.add("data/" + name);
+            }
+            Assert.assertEquals(expected, names);
+
+            Assert.assertEquals(0, readAll(read.getInputStream(read.getEntry(expected.get(0)))).length);
+            Assert.assertEquals(manifest.toString(),
+                    new String(readAll(read.getInputStream(read.getEntry("manifest-md5.txt"))), "UTF-8"));
+            for (int i = 0; i < pNames.length; i++) {
+                Assert.assertArrayEquals("content of " + pNames[i], pContents[i],
+                        readAll(read.getInputStream(read.getEntry("data/" + pNames[i]))));
+            }
+        } finally {
+            read.close();
+        }
+    }
+
+    private static byte[] bytes(int pLength) {
+        byte[] bytes = new byte[pLength];
+        for (int i = 0; i < pLength; i++) {
+            bytes[i] = (byte) (i * 31 + i / 256);
+        }
+        return bytes;
+    }
+
+    @Test
+    public final void testSuccessToFile() throws Exception {
+        packAndCheck(true, true,
+                new String[] {"text.txt", "empty.txt", "large.bin", "näme.txt"},
+                new byte[][] {"some text\n".getBytes("UTF-8"), new byte[0], bytes(200 * 1024), bytes(10)});
+    }
+
+    @Test
+    public final void testFailureToStream() throws Exception {
+        packAndCheck(false, false,
+                new String[] {"text.txt", "large.bin"},
+                new byte[][] {"some text\n".getBytes("UTF-8"), bytes(100 * 1024 + 7)});
+    }
+
+    @Test
+    public final void testNothingAdded() throws Exception {
+        packAndCheck(true, false, new String[0], new byte[0][]);
+    }
+
+    @Test(expected = IOException.class)
+    public final void testFileChangedAfterAdding() throws Exception {
+        ZipPackager zip = new ZipPackager(true);
+        File file = file("changed.txt", "before".getBytes("UTF-8"));
+        zip.addFile(file, "data/changed.txt");
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(" and after".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        zip.writeTo(new ByteArrayOutputStream());
+    }
+
+}
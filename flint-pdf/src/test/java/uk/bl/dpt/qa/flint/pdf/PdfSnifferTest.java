@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.bl.dpt.qa.flint.wrappers.TikaWrapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests that the PDF sniffer of TikaWrapper agrees with Tika on the sample PDFs.
+ */
+public class PdfSnifferTest {
+
+    private static File sample(String pName) {
+        return new File(PdfSnifferTest.class.getResource("/format_corpus/" + pName).getPath());
+    }
+
+    private static void check(String pName) throws IOException {
+        File file = sample(pName);
+        byte[] head = new byte[4 * 1024];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        String tika;
+        in = new FileInputStream(file);
+        try {
+            tika = TikaWrapper.getMimetype(in);
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(pName, "application/pdf", tika);
+        Assert.assertEquals(pName, tika, TikaWrapper.PDF.sniff(head, length));
+        Assert.assertEquals(pName, tika, TikaWrapper.getMimetype(file));
+    }
+
+    @Test
+    public final void testEncryptionNocopy() throws IOException {
+        check("encryption_nocopy.pdf");
+    }
+
+    @Test
+    public final void testEncryptionNoprinting() throws IOException {
+        check("encryption_noprinting.pdf");
+    }
+
+    @Test
+    public final void testEncryptionNotextaccess() throws IOException {
+        check("encryption_notextaccess.pdf");
+    }
+
+    @Test
+    public final void testEncryptionOpenpassword() throws IOException {
+        check("encryption_openpassword.pdf");
+    }
+
+    @Test
+    public final void testTextOnlyFontsEmbeddedAll() throws IOException {
+        check("text_only_fontsEmbeddedAll.pdf");
+    }
+
+    @Test
+    public final void testNotSniffed() throws IOException {
+        Assert.assertNull(TikaWrapper.PDF.sniff(new byte[0], 0));
+        Assert.assertNull(TikaWrapper.PDF.sniff("%PD".getBytes("US-ASCII"), 3));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+@SuppressWarnings("javadoc")
+public class PdfTrailerReaderTest {
+
+    private static ByteBuffer corpus(String name) throws Exception {
+        File file = new File(PdfTrailerReaderTest.class.getResource("/format_corpus/" + name).getPath());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A file with a cross-reference table, updated once; only the original trailer
+     * refers to the encryption dictionary
+     */
+    private static ByteBuffer updatedFile() {
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int obj1 = pdf.length();
+        pdf.append("1 0 obj\n<< /Type /Catalog /Pages 3 0 R >>\nendobj\n");
+        int obj2 = pdf.length();
+        pdf.append("2 0 obj\n<< /Filter /Standard /V 1 /R 2 /O (a\\)b) /U <0102> /P -44 >>\nendobj\n");
+        int xref1 = pdf.length();
+        pdf.append("xref\n0 3\n0000000000 65535 f \n")
+                .append(String.format("%010d 00000 n \n%010d 00000 n \n", obj1, obj2))
+                .append("trailer\n<< /Size 3 /Root 1 0 R /Encrypt 2 0 R /ID [<00><00>] >>\n")
+                .append("startxref\n").append(xref1).append("\n%%EOF\n");
+        int obj3 = pdf.length();
+        pdf.append("3 0 obj\n<< /Type /Pages /Kids [] /Count 0 >>\nendobj\n");
+        int xref2 = pdf.length();
+        pdf.append("xref\n3 1\n").append(String.format("%010d 00000 n \n", obj3))
+                .append("trailer\n<< /Size 4 /Root 1 0 R /Prev ").append(xref1).append(" >>\n")
+                .append("startxref\n").append(xref2).append("\n%%EOF\n");
+        return ByteBuffer.wrap(pdf.toString().getBytes(Charset.forName("US-ASCII")));
+    }
+
+    /**
+     * A file with nothing but a cross-reference stream of the given dictionary and data
+     */
+    private static ByteBuffer xrefStreamFile(String pDict, byte[] pData) throws Exception {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        pdf.write("%PDF-1.5\n".getBytes("US-ASCII"));
+        int xref = pdf.size();
+        pdf.write(("1 0 obj\n<< /Type /XRef /Size 2 /W [1 2 1] " + pDict + " >>\nstream\n").getBytes("US-ASCII"));
+        pdf.write(pData);
+        pdf.write(("\nendstream\nendobj\nstartxref\n" + xref + "\n%%EOF\n").getBytes("US-ASCII"));
+        return ByteBuffer.wrap(pdf.toByteArray());
+    }
+
+    @Test
+    public void testEncryptedXrefStream() throws Exception {
+        PdfTrailerReader.Encryption encryption = PdfTrailerReader.read(corpus("encryption_nocopy.pdf"));
+        Assert.assertNotNull(encryption);
+        Assert.assertTrue(encryption.isEncrypted());
+        Assert.assertEquals("Standard", encryption.getFilter());
+        // all permissions but copying (bit 5)
+        Assert.assertEquals(Long.valueOf(-1044), encryption.getPermissions());
+    }
+
+    @Test
+    public void testUnencryptedXrefStream() throws Exception {
+        PdfTrailerReader.Encryption encryption = PdfTrailerReader.read(corpus("text_only_fontsEmbeddedAll.pdf"));
+        Assert.assertNotNull(encryption);
+        Assert.assertFalse(encryption.isEncrypted());
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        PdfTrailerReader.Encryption encryption = PdfTrailerReader.read(updatedFile());
+        Assert.assertNotNull(encryption);
+        Assert.assertTrue(encryption.isEncrypted());
+        Assert.assertEquals("Standard", encryption.getFilter());
+        Assert.assertEquals(Long.valueOf(-44), encryption.getPermissions());
+    }
+
+    @Test
+    public void testBrokenFile() {
+        ByteBuffer bytes = ByteBuffer.wrap("%PDF-1.4\nstartxref\n12345\n%%EOF\n".getBytes(Charset.forName("US-ASCII")));
+        Assert.assertNull(PdfTrailerReader.read(bytes));
+        Assert.assertNull(PdfTrailerReader.read(ByteBuffer.wrap(new byte[0])));
+    }
+
+    @Test
+    public void testLengthBeyondEndOfFile() throws Exception {
+        byte[] entries = {0, 0, 0, 0, 1, 0, 9, 0};
+        PdfTrailerReader.Encryption encryption = PdfTrailerReader.read(xrefStreamFile("/Length 99999999999", entries));
+        Assert.assertNotNull(encryption);
+        Assert.assertFalse(encryption.isEncrypted());
+        Assert.assertNull(PdfTrailerReader.read(xrefStreamFile("/Length -1", entries)));
+    }
+
+    @Test
+    public void testInflatesTooMuch() throws Exception {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.BEST_COMPRESSION));
+        byte[] zeros = new byte[1024 * 1024];
+        for (int i = 0; i < 64; i++) {
+            out.write(zeros);
+        }
+        out.close();
+        byte[] data = deflated.toByteArray();
+        Assert.assertNull(PdfTrailerReader.read(xrefStreamFile("/Filter /FlateDecode /Length " + data.length, data)));
+    }
+
+    @Test
+    public void testNestedTooDeeply() throws Exception {
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\nxref\n0 1\n0000000000 65535 f \ntrailer\n<< /Size 1 /X ");
+        for (int i = 0; i < 100000; i++) {
+            pdf.append('[');
+        }
+        pdf.append(" >>\nstartxref\n9\n%%EOF\n");
+        Assert.assertNull(PdfTrailerReader.read(ByteBuffer.wrap(pdf.toString().getBytes("US-ASCII"))));
+    }
+
+}
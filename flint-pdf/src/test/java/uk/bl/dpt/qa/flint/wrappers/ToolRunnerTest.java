@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.wrappers;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for running tools, with small shell scripts standing in for them.
+ */
+@SuppressWarnings("javadoc")
+public class ToolRunnerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void onUnix() {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+    }
+
+    private static List<String> sh(String pScript) {
+        // a modifiable list, as runCommand removes empty arguments from it
+        return new ArrayList<String>(Arrays.asList("sh", "-c", pScript));
+    }
+
+    private static String readAll(BufferedReader pReader) throws IOException {
+        StringBuilder out = new StringBuilder();
+        String line;
+        while ((line = pReader.readLine()) != null) {
+            out.append(line).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return whether the process has gone, or is only waiting to be reaped
+     */
+    private static boolean gone(String pPid) throws IOException {
+        ToolRunner ps = new ToolRunner(true);
+        ps.runCommand(new ArrayList<String>(Arrays.asList("ps", "-o", "stat=", "-p", pPid)));
+        String stat = readAll(ps.getStdout()).trim();
+        return stat.isEmpty() || stat.startsWith("Z");
+    }
+
+    @Test
+    public final void testOutputAndExitCode() throws IOException {
+        ToolRunner runner = new ToolRunner();
+        int exitCode = runner.runCommand(sh("echo out; echo err >&2; exit 3"));
+        Assert.assertEquals(3, exitCode);
+        Assert.assertEquals("out\n", readAll(runner.getStdout()));
+        Assert.assertEquals("err\n", readAll(runner.getStderr()));
+        Assert.assertFalse(runner.isOutputTruncated());
+    }
+
+    @Test
+    public final void testRedirectStderr() throws IOException {
+        ToolRunner runner = new ToolRunner(true);
+        Assert.assertEquals(0, runner.runCommand(sh("echo out; echo err >&2")));
+        String out = readAll(runner.getStdout());
+        Assert.assertTrue(out, out.contains("out\n") && out.contains("err\n"));
+        Assert.assertNull(runner.getStderr());
+    }
+
+    @Test
+    public final void testOutputIsCapped() throws IOException {
+        ToolRunner runner = new ToolRunner();
+        runner.setMaxOutputSize(100);
+        // far more than a pipe holds, the tool must not block on it
+        int exitCode = runner.runCommand(sh("head -c 1000000 /dev/zero | tr '\\0' a; echo done >&2"));
+        Assert.assertEquals(0, exitCode);
+        Assert.assertTrue(runner.isOutputTruncated());
+        Assert.assertEquals(100, readAll(runner.getStdout()).trim().length());
+        Assert.assertEquals("done\n", readAll(runner.getStderr()));
+    }
+
+    @Test
+    public final void testTimeout() throws IOException {
+        ToolRunner runner = new ToolRunner();
+        runner.setTimeout(1);
+        long start = System.currentTimeMillis();
+        try {
+            runner.runCommand(sh("sleep 30"));
+            Assert.fail("no timeout");
+        } catch (ToolRunner.TimeoutException e) {
+            // expected
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public final void testTimeoutKillsChildren() throws Exception {
+        File pidFile = new File(tmp.getRoot(), "pid");
+        ToolRunner runner = new ToolRunner();
+        runner.setTimeout(1);
+        try {
+            runner.runCommand(sh("sleep 30 & echo $! > '" + pidFile.getAbsolutePath() + "'; wait"));
+            Assert.fail("no timeout");
+        } catch (ToolRunner.TimeoutException e) {
+            // expected
+        }
+        String pid = new String(Files.readAllBytes(pidFile.toPath()), Charset.forName("US-ASCII")).trim();
+        for (int i = 0; i < 50 && !gone(pid); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue("child " + pid + " still running", gone(pid));
+    }
+
+    @Test
+    public final void testNoTimeoutForQuickTool() throws IOException {
+        ToolRunner runner = new ToolRunner();
+        runner.setTimeout(10);
+        Assert.assertEquals(0, runner.runCommand(sh("echo quick")));
+        Assert.assertEquals("quick\n", readAll(runner.getStdout()));
+    }
+
+}
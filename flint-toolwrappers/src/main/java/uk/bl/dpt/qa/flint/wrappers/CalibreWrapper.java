@@ -22,11 +22,22 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper for Calibre - note that there are no static methods here (yet?)
@@ -39,6 +50,23 @@ public class CalibreWrapper {
 
     private static String gVersion = null;
     private static List<String> CALIBRE_CONVERT = null;
+    private static String CALIBRE_DEBUG = null;
+
+    private static final String WORKER_SCRIPT = "/calibre-worker.py";
+    private static final String WORKER_READY = "FLINT-READY";
+    private static final String WORKER_RESULT = "FLINT-RESULT ";
+    private static final String WORKER_EXITED = "FLINT-EXITED";
+    // how long to wait for a new worker to load calibre [seconds]
+    private static final long WORKER_STARTUP_TIMEOUT = 120;
+    // how long to wait for a worker to convert a file, as long as the checks' timeout [seconds]
+    private static final long WORKER_CONVERT_TIMEOUT = 10 * 60;
+    // a worker is replaced after this many files, in case calibre leaks
+    private static final int WORKER_MAX_USES = 100;
+    private static final int MAX_IDLE_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private static final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    private static volatile boolean workersFailed = false;
+    private static File workerScript = null;
 
     /**
      * Exception for when Calibre is missing 
@@ -77,6 +105,11 @@ public class CalibreWrapper {
                 String calibrePath = osMap.get(osBit);
                 if (new File(calibrePath).exists()) {
                     CALIBRE_CONVERT = Arrays.asList(calibrePath);
+                    File calibreDebug = new File(new File(calibrePath).getParentFile(),
+                            new File(calibrePath).getName().replace("ebook-convert", "calibre-debug"));
+                    if (calibreDebug.exists()) {
+                        CALIBRE_DEBUG = calibreDebug.getPath();
+                    }
                 } else {
                     LOGGER.warn("Calibre not installed? (not at: {})", calibrePath);
                     wrongOs = false;
@@ -164,7 +197,10 @@ public class CalibreWrapper {
 	}
 	
 	/**
-	 * Check to see if the file is valid by trying to convert to text
+	 * Check to see if the file is valid by trying to convert to text.
+	 * The conversion is done by a long-running calibre worker where possible, so
+	 * calibre doesn't have to start up for every file; ebook-convert is only run
+	 * on its own if no worker can be started.
 	 * @param pFile file to check
 	 * @return true if valid (i.e. can be converted to text)
 	 * @throws CalibreMissingException in case Calibre is missing
@@ -173,7 +209,68 @@ public class CalibreWrapper {
         if (CALIBRE_CONVERT == null && !calibreIsAvailable()) {
             throw new CalibreMissingException();
         }
+        Boolean valid = isValidWithWorker(pFile);
+        if (valid != null) {
+            return valid;
+        }
+        return isValidWithConvert(pFile);
+    }
 
+    /**
+     * Check the file with a calibre worker
+     * @param pFile file to check
+     * @return whether the file is valid, or null if no worker can be used for it
+     */
+    private static Boolean isValidWithWorker(File pFile) {
+        String path = pFile.getAbsolutePath();
+        // the worker reads one tab-separated request per line
+        if (CALIBRE_DEBUG == null || workersFailed || path.contains("\t") || path.contains("\n") || path.contains("\r")) {
+            return null;
+        }
+        Worker worker = idleWorkers.poll();
+        if (worker == null) {
+            try {
+                worker = new Worker(Arrays.asList(CALIBRE_DEBUG, "-e", workerScript().getAbsolutePath()));
+            } catch (IOException e) {
+                LOGGER.warn("Can't start a Calibre worker, running ebook-convert for every file instead: {}", e);
+                workersFailed = true;
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        boolean reusable = false;
+        File newEbook = null;
+        try {
+            newEbook = File.createTempFile(pFile.getName()+"-", ".txt");
+            boolean valid = worker.isValid(pFile, newEbook);
+            reusable = true;
+            return valid;
+        } catch (InterruptedException e) {
+            // the check was cancelled, most likely timed out; the worker is stopped below
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            // calibre died on this file, just as ebook-convert would have exited with an error
+            LOGGER.warn("Calibre worker failed on {}: {}", pFile, e);
+            return false;
+        } finally {
+            if (newEbook != null && !newEbook.delete()) newEbook.deleteOnExit();
+            if (reusable && worker.uses < WORKER_MAX_USES && idleWorkers.size() < MAX_IDLE_WORKERS) {
+                idleWorkers.offer(worker);
+            } else {
+                worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * Check the file by running ebook-convert on it
+     * @param pFile file to check
+     * @return true if valid (i.e. can be converted to text)
+     */
+    private static boolean isValidWithConvert(File pFile) {
 		boolean ret = false;
 
 		//we need to redirect stderr to stdout otherwise bad things happen if drm is detected and stderr is written to first
@@ -210,6 +307,117 @@ public class CalibreWrapper {
 		return ret;
 	}
 	
+    /**
+     * Get the worker script, copying it out of the jar on first use
+     * @return the script file
+     * @throws IOException
+     */
+    private static synchronized File workerScript() throws IOException {
+        if (workerScript == null) {
+            File script = File.createTempFile("flint-calibre-worker-", ".py");
+            script.deleteOnExit();
+            InputStream in = CalibreWrapper.class.getResourceAsStream(WORKER_SCRIPT);
+            if (in == null) throw new IOException("missing resource " + WORKER_SCRIPT);
+            try {
+                Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                in.close();
+            }
+            workerScript = script;
+        }
+        return workerScript;
+    }
+
+    /**
+     * A calibre process converting one ebook after the other, see calibre-worker.py
+     */
+    private static class Worker {
+        private final Process process;
+        private final Writer requests;
+        // the worker's output, read by a thread of its own so waiting for it can time out
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        private int uses = 0;
+
+        Worker(List<String> pCommandLine) throws IOException, InterruptedException {
+            ProcessBuilder pb = new ProcessBuilder(pCommandLine);
+            //we need to redirect stderr to stdout otherwise bad things happen if drm is detected and stderr is written to first
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readAnswers();
+                }
+            }, "flint-calibre-worker");
+            reader.setDaemon(true);
+            reader.start();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WORKER_STARTUP_TIMEOUT);
+            String line;
+            do {
+                line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } while (line != null && !line.equals(WORKER_READY) && !line.equals(WORKER_EXITED));
+            if (!WORKER_READY.equals(line)) {
+                destroy();
+                throw new IOException("Calibre worker didn't start: " + (line == null ? "timed out" : "exited"));
+            }
+            LOGGER.debug("started Calibre worker");
+        }
+
+        boolean isValid(File pFile, File pOutput) throws IOException, InterruptedException {
+            uses++;
+            requests.write(pFile.getAbsolutePath() + "\t" + pOutput.getAbsolutePath() + "\n");
+            requests.flush();
+            // as for ebook-convert on its own, calibre has to say it saved the output
+            boolean saved = false;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WORKER_CONVERT_TIMEOUT);
+            while (true) {
+                String line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (line == null) {
+                    throw new IOException("Calibre worker didn't answer within " + WORKER_CONVERT_TIMEOUT + "s");
+                }
+                if (line.equals(WORKER_EXITED)) {
+                    throw new IOException("Calibre worker exited with code " + exitCode());
+                }
+                if (line.startsWith(WORKER_RESULT)) {
+                    return "0".equals(line.substring(WORKER_RESULT.length()).trim()) && saved;
+                }
+                if (line.contains("Output saved to") || line.contains("TXT output written to")) {
+                    saved = true;
+                }
+                LOGGER.trace("calibre: {}", line);
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+
+        private void readAnswers() {
+            try {
+                BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+                String line;
+                while ((line = out.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("lost Calibre worker output: {}", e);
+            } finally {
+                lines.add(WORKER_EXITED);
+            }
+        }
+
+        private String exitCode() {
+            try {
+                return String.valueOf(process.waitFor());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "unknown";
+            }
+        }
+    }
+
 	/**
 	 * Extracts text from a PDF
 	 * @param pFile input file
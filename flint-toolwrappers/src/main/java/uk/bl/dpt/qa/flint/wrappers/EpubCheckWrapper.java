@@ -22,9 +22,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -36,7 +39,10 @@ public class EpubCheckWrapper {
 
     static Logger LOGGER = LoggerFactory.getLogger(EpubCheckWrapper.class);
 
-    private static Map<String, Report> miniCache = new HashMap<String, Report>();
+    // the reports of the most recently checked files, up to this many bytes in total
+    private static final long REPORT_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final ReportCache reportCache = new ReportCache(REPORT_CACHE_BYTES);
 
     private EpubCheckWrapper() {}
 
@@ -47,18 +53,91 @@ public class EpubCheckWrapper {
      * @throws IOException
      */
     public static StreamSource check(File file) throws IOException {
-        Report report = miniCache.get(file.getAbsolutePath());
-        File reportFile = null;
+        FileKey key = new FileKey(file);
+        byte[] report = reportCache.get(key);
         if (report == null) {
-            reportFile = File.createTempFile("epubcheck-report", "-for-" + file.getName() + ".xml");
-            report = new XmlReportWithMessageIds(reportFile, file.getName(), EpubCheck.version());
-            EpubCheck check = new EpubCheck(file, report);
-            check.validate();
-            report.generate();
-            LOGGER.info("Generated EpubCheck report at {}");
-            miniCache.put(file.getAbsolutePath(), report);
+            // the XmlReportImpl of the epubcheck version we build against takes a File and only
+            // writes to it in generate(), keeping the messages to itself until then, so the
+            // report goes through a temporary file that is deleted once it has been read back
+            File reportFile = File.createTempFile("epubcheck-report-", ".xml");
+            try {
+                Report xmlReport = new XmlReportWithMessageIds(reportFile, file.getName(), EpubCheck.version());
+                EpubCheck check = new EpubCheck(file, xmlReport);
+                check.validate();
+                xmlReport.generate();
+                LOGGER.debug("Generated EpubCheck report for {} at {}", file, reportFile);
+                report = Files.readAllBytes(reportFile.toPath());
+            } finally {
+                if (!reportFile.delete()) reportFile.deleteOnExit();
+            }
+            reportCache.put(key, report);
         }
-        return new StreamSource(reportFile);
+        return new StreamSource(new ByteArrayInputStream(report));
     }
-    
+
+    /**
+     * Forget the report kept for a file, so it is checked again on the next call
+     * @param file the checked file
+     * @throws IOException
+     */
+    public static void invalidate(File file) throws IOException {
+        reportCache.remove(new FileKey(file).getPath());
+    }
+
+    /**
+     * Forget all kept reports
+     */
+    public static void invalidateAll() {
+        reportCache.clear();
+    }
+
+    /**
+     * Keeps the reports of the most recently checked files, keyed by the file's
+     * canonical path, size and modification time.  The oldest reports are dropped
+     * once their total size exceeds the limit; a single report larger than the
+     * limit isn't kept at all.
+     */
+    private static class ReportCache {
+        private final long maxBytes;
+        private final LinkedHashMap<FileKey, byte[]> reports = new LinkedHashMap<FileKey, byte[]>(16, 0.75f, true);
+        private long bytes = 0;
+
+        ReportCache(long pMaxBytes) {
+            this.maxBytes = pMaxBytes;
+        }
+
+        synchronized byte[] get(FileKey pKey) {
+            return reports.get(pKey);
+        }
+
+        synchronized void put(FileKey pKey, byte[] pReport) {
+            if (pReport.length > maxBytes) return;
+            byte[] old = reports.put(pKey, pReport);
+            if (old != null) bytes -= old.length;
+            bytes += pReport.length;
+            Iterator<byte[]> eldest = reports.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+
+        synchronized void remove(String pPath) {
+            Iterator<Map.Entry<FileKey, byte[]>> it = reports.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<FileKey, byte[]> entry = it.next();
+                // any state of the file
+                if (entry.getKey().getPath().equals(pPath)) {
+                    bytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            reports.clear();
+            bytes = 0;
+        }
+    }
+
 }
@@ -16,16 +16,22 @@
  */
 package uk.bl.dpt.qa.flint.wrappers;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Scanner;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.bl.dpt.utils.checksum.ChecksumUtil;
-import uk.bl.dpt.utils.util.FileUtil;
 import uk.bl.dpt.utils.util.ResourceUtil;
 import uk.bl.dpt.utils.util.StreamUtil;
 
@@ -51,12 +57,35 @@ public class ExiftoolWrapper {
 	 */
 	final public static String EXIFTOOL_LINUX = "/usr/bin/exiftool";//path to installed location
 	
-	private static String EXIFTOOL = null; 
+	// set up once, by the first thread that needs it
+	private static String EXIFTOOL = null;
+	private static boolean setupDone = false;
+
+	private static Logger LOGGER = LoggerFactory.getLogger(ExiftoolWrapper.class);
+
+	private static final String EXITED = "exited";
+	private static final int MAX_IDLE_WORKERS = Runtime.getRuntime().availableProcessors();
+	// how long to wait for exiftool to answer for a file, as long as the checks' timeout [seconds]
+	private static final long ANSWER_TIMEOUT = 10 * 60;
+
+	// exiftool processes waiting for the next file, so perl and exiftool don't have to start up for every file
+	private static final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
 	
 	private ExiftoolWrapper() {
 		// TODO Auto-generated constructor stub
 	}
 
+	/**
+	 * @return the path to exiftool, or null if it can't be used; it is only looked for once
+	 */
+	private static synchronized String exiftool() {
+		if(!setupDone) {
+			setupExiftool();
+			setupDone = true;
+		}
+		return EXIFTOOL;
+	}
+
 	private static void setupExiftool() {
 		String os = System.getProperty("os.name").toLowerCase();
 		if(os.contains("windows")) {
@@ -100,79 +129,129 @@ public class ExiftoolWrapper {
 		
 	}
 	
-	/**
-	 * Run Exiftool
-	 * @param pFile
-	 * @return
-	 */
-	private static File runExiftool(File pFile) {
-		List<String> commandLine = Arrays.asList(EXIFTOOL, "-X", pFile.getAbsolutePath());
-		ToolRunner runner = new ToolRunner();
-		try {
-			//System.out.println("Running: "+commandLine.toString());
-			//long time = System.currentTimeMillis();
-			runner.runCommand(commandLine);
-			//System.err.println("Exiftool runtime: "+(System.currentTimeMillis()-time)+"ms");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		//do something with stdout buffer
-		try {
-			File tempXml = File.createTempFile("flint-exiftool-output-", ".xml");
-			FileUtil.writeReaderToFile(runner.getStdout(), tempXml);
-			//tempXml.deleteOnExit();
-			return tempXml;
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		return null;
-	}
-	
 	/**
 	 * Does the (PDF) file contain encryption?
 	 * @param pFile file to check
 	 * @return whether or not the file has encryption
 	 */
 	public static boolean hasDRM(File pFile) {
-		if(null==EXIFTOOL) setupExiftool();
-		if(null==EXIFTOOL) {
-			//i.e. it's still null so we were unable to set up exiftool environment
+		String exiftool = exiftool();
+		if(null==exiftool) {
+			//i.e. we were unable to set up exiftool environment
 			return false;
 		}
-		
-		boolean ret = false;
-		
-		File output = runExiftool(pFile);
-		
+		String path = pFile.getAbsolutePath();
+		if(path.contains("\n") || path.contains("\r")) {
+			// exiftool reads one argument per line
+			LOGGER.warn("can't pass {} to exiftool", pFile);
+			return false;
+		}
+
 		/*
 		 * NOTE: we can do more than just detect the presence of DRM with Exiftool (see outputs)
 		 * Might want to add more granular approach?
 		 */
-		
-		Scanner scanner = null;
+
+		Worker worker = idleWorkers.poll();
+		if(worker == null) {
+			try {
+				worker = new Worker(exiftool);
+			} catch (IOException e) {
+				LOGGER.error("could not start exiftool: {}", e);
+				return false;
+			}
+		}
+		boolean reusable = false;
 		try {
-			scanner = new Scanner(new FileInputStream(output));
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			boolean ret = worker.hasEncryption(path);
+			reusable = true;
+			return ret;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IOException e) {
+			// exiftool died or hangs on this file; the worker is killed below and a new one
+			// started for the next file
+			LOGGER.warn("exiftool failed on {}: {}", pFile, e);
+			return false;
+		} finally {
+			if(reusable && idleWorkers.size() < MAX_IDLE_WORKERS) {
+				idleWorkers.offer(worker);
+			} else {
+				worker.destroy();
+			}
 		}
+	}
 
-		//just try and find the first occurrence of PDF:Encryption
-		//i.e. this is an ugly way around rdf namespaces and xpath
-		String found = scanner.findWithinHorizon("PDF:Encryption", 0);
-		scanner.close();
-		
-		if(found!=null) {
-			//i.e. drm detected
-			ret = true;
-			//System.out.println("DRM detected with Exiftool");
+	/**
+	 * An exiftool process in -stay_open mode, checking one file after the other.
+	 * Each request is answered with exiftool's output followed by a {readyN} line,
+	 * N being the number of the request.
+	 */
+	private static class Worker {
+		private final Process process;
+		private final Writer requests;
+		// the answers, collected by a thread of its own so waiting for them can be interrupted
+		private final BlockingQueue<String> answers = new LinkedBlockingQueue<String>();
+		private int count = 0;
+
+		Worker(String pExiftool) throws IOException {
+			ProcessBuilder pb = new ProcessBuilder(pExiftool, "-stay_open", "True", "-@", "-");
+			pb.redirectErrorStream(true);
+			process = pb.start();
+			requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readAnswers();
+				}
+			}, "flint-exiftool");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		boolean hasEncryption(String pPath) throws IOException, InterruptedException {
+			count++;
+			requests.write("-charset\nfilename=utf8\n-X\n" + pPath + "\n-execute" + count + "\n");
+			requests.flush();
+			String answer = answers.poll(ANSWER_TIMEOUT, TimeUnit.SECONDS);
+			if(answer == null) {
+				throw new IOException("exiftool didn't answer within " + ANSWER_TIMEOUT + "s");
+			}
+			if(answer.equals(EXITED)) {
+				throw new IOException("exiftool exited");
+			}
+			if(!answer.startsWith(count + ":")) {
+				throw new IOException("exiftool answered request " + answer + " instead of " + count);
+			}
+			return answer.endsWith(":true");
+		}
+
+		void destroy() {
+			process.destroy();
+		}
+
+		private void readAnswers() {
+			try {
+				BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+				boolean found = false;
+				String line;
+				while((line = out.readLine()) != null) {
+					if(line.startsWith("{ready") && line.endsWith("}")) {
+						answers.add(line.substring("{ready".length(), line.length() - 1) + ":" + found);
+						found = false;
+					} else if(line.contains("PDF:Encryption")) {
+						//just try and find the first occurrence of PDF:Encryption
+						//i.e. this is an ugly way around rdf namespaces and xpath
+						found = true;
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.debug("lost exiftool output: {}", e);
+			} finally {
+				answers.add(EXITED);
+			}
 		}
-		
-		return ret;
 	}
 
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.wrappers;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a file in a particular state, by its canonical path, size and
+ * modification time, so results cached for a file aren't used once it changes.
+ */
+final class FileKey {
+    private final String path;
+    private final long size;
+    private final long modified;
+
+    FileKey(File pFile) throws IOException {
+        this.path = pFile.getCanonicalPath();
+        this.size = pFile.length();
+        this.modified = pFile.lastModified();
+    }
+
+    /**
+     * @return the canonical path of the file
+     */
+    String getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FileKey)) return false;
+        FileKey other = (FileKey) o;
+        return path.equals(other.path) && size == other.size && modified == other.modified;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * path.hashCode() + (int) (size ^ (size >>> 32))) + (int) (modified ^ (modified >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + size + " bytes, modified " + modified + ")";
+    }
+}
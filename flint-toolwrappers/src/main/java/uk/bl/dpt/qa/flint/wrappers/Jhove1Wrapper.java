@@ -17,16 +17,17 @@
 package uk.bl.dpt.qa.flint.wrappers;
 
 import java.io.File;
-import java.io.FileInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.bl.dpt.utils.util.XMLUtil;
 import edu.harvard.hul.ois.jhove.App;
+import edu.harvard.hul.ois.jhove.HandlerBase;
 import edu.harvard.hul.ois.jhove.JhoveBase;
 import edu.harvard.hul.ois.jhove.JhoveException;
-import edu.harvard.hul.ois.jhove.handler.XmlHandler;
+import edu.harvard.hul.ois.jhove.Module;
+import edu.harvard.hul.ois.jhove.OutputHandler;
+import edu.harvard.hul.ois.jhove.RepInfo;
 
 /**
  * This class wraps and hides Jhove - a call to isValid() will return true or false if
@@ -38,35 +39,21 @@ public class Jhove1Wrapper {
 
     private static Logger LOGGER = LoggerFactory.getLogger(Jhove1Wrapper.class);
 
-    private static JhoveBase jhove = null;
-    private static App app = null;
-    private static XmlHandler handler = null;
+    private static final String VALID = "Well-Formed and valid";
+
+    // JhoveBase and the handlers keep state while processing a file, so every thread has its own
+    private static final ThreadLocal<Engine> engines = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            try {
+                return new Engine();
+            } catch (JhoveException e) {
+                LOGGER.warn("Caught exception: {}", e);
+                return null;
+            }
+        }
+    };
 
-    static {
-        //CONFIG_FILE_PATH = Jhove1Wrapper.class.getResource("/jhove.conf").getPath();
-        //LOGGER.warn("JHOVE CONFIG EXISTS at {}?: {}", CONFIG_FILE_PATH, new File(CONFIG_FILE_PATH).exists());
-        //http://www.garymcgath.com/jhovenote.html
-		//and https://github.com/openplanets/planets-suite/blob/59d1517b5493815a0f59927d6c97ca5462d1ed8d/services/jhove/src/main/java/eu/planets_project/ifr/core/services/identification/jhove/impl/JhoveIdentification.java
-		try {
-			jhove = new JhoveBase();
-		} catch (JhoveException e1) {
-			LOGGER.warn("Caught exception: {}", e1);
-		}
-		app = new App(JhoveBase._name, JhoveBase._release, JhoveBase.DATE, "", "");
-		handler = new XmlHandler();
-		//try {
-		//	jhove.init();
-		//} catch (JhoveException e) {
-		//	LOGGER.warn("Caught exception: {}", e);
-		//}
-		jhove.setEncoding("utf-8");
-		jhove.setTempDirectory(System.getProperty("java.io.tmpdir"));
-		jhove.setBufferSize(4096);
-		jhove.setChecksumFlag(false);
-		jhove.setShowRawFlag(false);
-		jhove.setSignatureFlag(false);
-    }
-	
 	private Jhove1Wrapper() {}
 
 	/**
@@ -76,26 +63,20 @@ public class Jhove1Wrapper {
 	 */
 	public static boolean isValid(File pFile) {
 		boolean ret = false;
+		Engine engine = engines.get();
+		if (engine == null) {
+			return false;
+		}
 		try {
-			File temp = File.createTempFile("jhove-output-", ".xml");
-			String[] inputs = new String[] { pFile.getAbsolutePath() };
-			jhove.dispatch(app, null, null, handler, temp.getAbsolutePath(), inputs);
-			
-			//THIS IS A HORRID HORRID HACK TO GET AROUND JHOVE NAMESPACE ISSUES WHEN NOT ABLE TO CONNECT TO INTERNET
-			String xpath = "/*[local-name()='jhove']/*[local-name()='repInfo']/*[local-name()='status']/text()";
-			
-			String status = XMLUtil.getXpathVal(new FileInputStream(temp), xpath);
+			String status = engine.status(pFile);
 			if(null==status) {
-				LOGGER.warn(temp.getAbsolutePath()+": NULL");
+				LOGGER.warn(pFile.getAbsolutePath()+": NULL");
 			} else {
-				if(status.toLowerCase().equals("Well-Formed and valid".toLowerCase())) {
+				if(status.equals(VALID)) {
 					ret = true;
 				}
-				//System.out.println(temp.getAbsolutePath()+": "+status+", "+status.length());
+				LOGGER.warn("jhove thinks it is: {}", status.toLowerCase());
 			}
-            LOGGER.warn("jhove thinks it is: {}", status.toLowerCase());
-			temp.delete();
-
 		} catch (Exception e) {
 			LOGGER.warn("Caught exception: {}", e);
 		}
@@ -103,4 +84,96 @@ public class Jhove1Wrapper {
 		return ret;
 	}
 
+    /**
+     * A Jhove instance together with a handler that keeps the status of the
+     * processed file instead of writing it out
+     */
+    private static class Engine {
+        private final JhoveBase jhove;
+        private final App app;
+        private final StatusHandler handler;
+
+        Engine() throws JhoveException {
+            //CONFIG_FILE_PATH = Jhove1Wrapper.class.getResource("/jhove.conf").getPath();
+            //LOGGER.warn("JHOVE CONFIG EXISTS at {}?: {}", CONFIG_FILE_PATH, new File(CONFIG_FILE_PATH).exists());
+            //http://www.garymcgath.com/jhovenote.html
+            //and https://github.com/openplanets/planets-suite/blob/59d1517b5493815a0f59927d6c97ca5462d1ed8d/services/jhove/src/main/java/eu/planets_project/ifr/core/services/identification/jhove/impl/JhoveIdentification.java
+            jhove = new JhoveBase();
+            app = new App(JhoveBase._name, JhoveBase._release, JhoveBase.DATE, "", "");
+            handler = new StatusHandler();
+            jhove.setEncoding("utf-8");
+            jhove.setTempDirectory(System.getProperty("java.io.tmpdir"));
+            jhove.setBufferSize(4096);
+            jhove.setChecksumFlag(false);
+            jhove.setShowRawFlag(false);
+            jhove.setSignatureFlag(false);
+        }
+
+        /**
+         * @param pFile the file to process
+         * @return the status Jhove gives the file, as it would appear in Jhove's xml output
+         * @throws Exception
+         */
+        String status(File pFile) throws Exception {
+            handler.status = null;
+            jhove.dispatch(app, null, null, handler, null, new String[] { pFile.getAbsolutePath() });
+            return handler.status;
+        }
+    }
+
+    /**
+     * Keeps the status of the first file shown, in the words of Jhove's XmlHandler,
+     * and shows nothing
+     */
+    private static class StatusHandler extends HandlerBase {
+        private String status;
+
+        StatusHandler() {
+            super("FLint-status", "1.0", new int[] { 2014, 1, 1 }, "", "");
+        }
+
+        @Override
+        public void show(RepInfo info) {
+            if (status != null) return;
+            int wellFormed = info.getWellFormed();
+            int valid = info.getValid();
+            if (wellFormed == RepInfo.TRUE) {
+                if (valid == RepInfo.TRUE) {
+                    status = VALID;
+                } else if (valid == RepInfo.FALSE) {
+                    status = "Well-Formed, but not valid";
+                } else {
+                    status = "Well-Formed";
+                }
+            } else if (wellFormed == RepInfo.FALSE) {
+                status = "Not well-formed";
+            } else {
+                status = "Unknown";
+            }
+        }
+
+        @Override
+        public void show(Module module) {}
+
+        @Override
+        public void show(OutputHandler handler) {}
+
+        @Override
+        public void show() {}
+
+        @Override
+        public void show(App app) {}
+
+        @Override
+        public void showHeader() {}
+
+        @Override
+        public void showFooter() {}
+
+        @Override
+        public void close() {
+            // without an output file, Jhove hands the handler a writer on System.out, which has to stay open
+        }
+    }
+
 }
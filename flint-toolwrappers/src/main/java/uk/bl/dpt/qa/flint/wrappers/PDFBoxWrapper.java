@@ -17,8 +17,6 @@
  */
 package uk.bl.dpt.qa.flint.wrappers;
 
-import org.apache.pdfbox.io.RandomAccess;
-import org.apache.pdfbox.io.RandomAccessFile;
 import org.apache.pdfbox.pdfparser.PDFParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
@@ -44,8 +42,11 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Class to wrap the Apache PDFBox library
@@ -54,30 +55,20 @@ public class PDFBoxWrapper {
 
     private static Logger LOGGER = LoggerFactory.getLogger(PDFBoxWrapper.class);
 
-    private static Map<String, Element> pseudoCache = new HashMap<String, Element>();
+    // enough for every file that is being checked at the same time, with some to spare
+    private static final int PREFLIGHT_CACHE_SIZE = 64;
 
-    private static final XmlResultParser parser = new CachingXmlResultParser();
+    private static final PreflightCache preflightCache = new PreflightCache(PREFLIGHT_CACHE_SIZE);
+
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
 
     private PDFBoxWrapper() {}
 
     /**
-     * As preflight is used more than once for different puroposes the result
-     * shall be cached for performance reasons.
+     * Runs the preflight validation and builds the result element
      */
-    private static class CachingXmlResultParser extends XmlResultParser {
+    private static class PreflightXmlResultParser extends XmlResultParser {
         public Element validate (Document rdocument, DataSource source) throws IOException {
-            if (pseudoCache.containsKey(source.getName())) {
-                // can be null, which means it's not valid
-                Element preflight = pseudoCache.get(source.getName());
-                // we only cache ONCE and clear after.
-                pseudoCache.clear();
-                return preflight;
-            }
-            // state that one has dealt with this file:
-            pseudoCache.put(source.getName(), null);
-
-            // now do the actual work that will finish with caching and returning the element
-            // in case something goes wrong, the empty entry above will remain testifying we have tried.
             String pdfType = null;
             ValidationResult result = null;
             long before = System.currentTimeMillis();
@@ -113,11 +104,87 @@ public class PDFBoxWrapper {
                 // valid ?
                 createResponseWithError(rdocument, pdfType, result, preflight);
             }
-            pseudoCache.put(source.getName(), preflight);
             return preflight;
         }
     }
 
+    /**
+     * As preflight is used more than once for different puroposes the result
+     * shall be cached for performance reasons.
+     *
+     * Only the entry points taking a File use this cache, i.e. callers that check a
+     * file without a {@link PdfAnalysisContext}, such as the PDF PolicyValidation
+     * when it is created without one; the checks of PDFFormat share the result kept
+     * in their context instead.
+     *
+     * The results of the most recently used files are kept, keyed by the file's
+     * canonical path, size and modification time, so a file that has changed is
+     * validated again.  Threads asking for the same file at the same time share a
+     * single preflight run.  Only successful runs are kept: a failure, including a
+     * run that was interrupted or stopped because it timed out, is thrown to the
+     * callers waiting for that run and the next caller runs preflight afresh.
+     */
+    private static class PreflightCache {
+        private final Map<FileKey, FutureTask<Element>> results;
+
+        PreflightCache(final int pCapacity) {
+            this.results = new LinkedHashMap<FileKey, FutureTask<Element>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<FileKey, FutureTask<Element>> eldest) {
+                    return size() > pCapacity;
+                }
+            };
+        }
+
+        Element get(final File pFile) throws IOException {
+            FileKey key = new FileKey(pFile);
+            FutureTask<Element> task;
+            boolean run = false;
+            synchronized (results) {
+                task = results.get(key);
+                if (task == null) {
+                    task = new FutureTask<Element>(new Callable<Element>() {
+                        @Override
+                        public Element call() throws IOException {
+                            return preflight(pFile);
+                        }
+                    });
+                    results.put(key, task);
+                    run = true;
+                }
+            }
+            // validate outside the lock, so other files don't have to wait for this one
+            if (run) task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for preflight of " + pFile);
+            } catch (ExecutionException e) {
+                synchronized (results) {
+                    // unless a later run has replaced it already
+                    if (results.get(key) == task) results.remove(key);
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Runs preflight over the pdf file without consulting or filling the cache,
+     * to be used by {@link PdfAnalysisContext} which keeps the result itself.
+     * @param pFile the input file
+     * @return the preflight result element
+     * @throws IOException
+     */
+    static Element preflight(File pFile) throws IOException {
+        return new PreflightXmlResultParser().validate(new FileDataSource(pFile));
+    }
+
     /**
      * Runs preflight over the pdf file and produces an output file.
      * If the transformation of the preflight output Element to xml
@@ -127,16 +194,60 @@ public class PDFBoxWrapper {
      * @throws TransformerException 
      */
     public static ByteArrayOutputStream preflightToXml(File pFile) throws IOException, TransformerException {
-        Element result = parser.validate(new FileDataSource(pFile));
+        Element result = preflightCache.get(pFile);
         LOGGER.debug("generating xml from preflight generated element for {}", pFile);
+        return toXml(result);
+    }
+
+    /**
+     * Produces the preflight output of a file whose preflight result is kept
+     * in the given context.
+     * @param pContext the analysis context of the input file
+     * @return the output-stream of the preflight validation
+     * @throws Exception
+     */
+    public static ByteArrayOutputStream preflightToXml(PdfAnalysisContext pContext) throws Exception {
+        Element result = pContext.getPreflight();
+        LOGGER.debug("generating xml from preflight generated element for {}", pContext.getFile());
+        return toXml(result);
+    }
+
+    /**
+     * Produces the preflight output of a file whose preflight result is kept
+     * in the given context, ready to be validated against a schematron policy.
+     * Unlike {@link #preflightToXml(PdfAnalysisContext)}, the result document is
+     * handed over as it is, without serialising it.  It must only be read, and
+     * only by one thread at a time.
+     * @param pContext the analysis context of the input file
+     * @return a source over the preflight result document
+     * @throws Exception
+     */
+    public static DOMSource preflightToSource(PdfAnalysisContext pContext) throws Exception {
+        Element result = pContext.getPreflight();
         Document doc = result.getOwnerDocument();
-        doc.appendChild(result);
+        synchronized (doc) {
+            if (doc.getDocumentElement() == null) doc.appendChild(result);
+        }
+        return new DOMSource(doc);
+    }
 
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    private static ByteArrayOutputStream toXml(Element pResult) throws TransformerException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Transformer transformer;
+        // the factory isn't thread-safe, the transformer is only used by this thread
+        synchronized (transformerFactory) {
+            transformer = transformerFactory.newTransformer();
+        }
         transformer.setOutputProperty(OutputKeys.INDENT, "yes");
         transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        transformer.transform(new DOMSource(doc), new StreamResult(output));
+
+        Document doc = pResult.getOwnerDocument();
+        // a cached result may be serialised by several threads at once, and the DOM isn't thread-safe
+        synchronized (doc) {
+            // the element is only added once, it may be serialised more than once
+            if (doc.getDocumentElement() == null) doc.appendChild(pResult);
+            transformer.transform(new DOMSource(doc), new StreamResult(output));
+        }
         return output;
     }
 
@@ -147,7 +258,7 @@ public class PDFBoxWrapper {
      */
     public static boolean isValid(File pFile) {
         try {
-            if (parser.validate(new FileDataSource(pFile)) == null) {
+            if (preflightCache.get(pFile) == null) {
                 return false;
             }
         } catch (IOException e) {
@@ -160,19 +271,35 @@ public class PDFBoxWrapper {
             LOGGER.warn("Exception leads to invalidity: {}", e);
             return false;
         }
+        return true;
+    }
 
-        // if preflight passes the file then try and extract the text from the file
-        // this should be more robust at finding errors than load/save but it's
-        // still not ideal
-        File pTemp;
+    /**
+     * A better PDFBox isValid() method, using the preflight result kept in the context
+     * @param pContext the analysis context of the file to check
+     * @return true if valid, false if not
+     */
+    public static boolean isValid(PdfAnalysisContext pContext) {
         try {
-            pTemp = File.createTempFile("flint-temp-", ".pdfbox.txt");
-            pTemp.deleteOnExit();
+            if (pContext.getPreflight() == null) {
+                return false;
+            }
         } catch (IOException e) {
+            LOGGER.warn("IOException leads to invalidity: {}", e);
+            return false;
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("IllegalArgumentException leads to invalidity: {}", e);
+            return false;
+        } catch (Exception e) {
+            LOGGER.warn("Exception leads to invalidity: {}", e);
             return false;
         }
+
+        // if preflight passes the file one could try and extract the text from the file
+        // this should be more robust at finding errors than load/save but it's
+        // still not ideal
+        //return extractTextFromPDF(pContext.getFile(), pTemp, true);
         return true;
-        //return extractTextFromPDF(pFile, pTemp, true);
     }
 
 	/**
@@ -212,22 +339,28 @@ public class PDFBoxWrapper {
 	 * @return whether the file is had DRM or not
 	 */
 	public static boolean hasDRM(File pFile) {
+		PdfAnalysisContext context = new PdfAnalysisContext(pFile);
+		try {
+			return hasDRM(context);
+		} finally {
+			context.close();
+		}
+	}
+
+	/**
+	 * Check if a PDF file has DRM or not
+	 * @param pContext the analysis context of the file to check
+	 * @return whether the file is had DRM or not
+	 */
+	public static boolean hasDRM(PdfAnalysisContext pContext) {
 		boolean ret = false;
 		try {
-			System.setProperty("org.apache.pdfbox.baseParser.pushBackSize", "1024768");
-			// NOTE: we use loadNonSeq here as it is the latest parser
-			// load() and parser.parse() have hung on test files
-			File tmp = File.createTempFile("flint-", ".tmp");
-			tmp.deleteOnExit();
-			RandomAccess scratchFile = new RandomAccessFile(tmp, "rw");
-			PDDocument doc = PDDocument.loadNonSeq(new FileInputStream(pFile), scratchFile);
-			ret = doc.isEncrypted();
-			doc.close();
+			ret = pContext.getPDDocument().isEncrypted();
 
 		} catch(IOException e) {
 
 			// This may occur when a suitable security handler cannot be found
-			if(e.getMessage().contains("BadSecurityHandlerException")) {
+			if(e.getMessage() != null && e.getMessage().contains("BadSecurityHandlerException")) {
 				// if this happens then there must be some sort of DRM here
 				ret = true;
 			}
@@ -256,17 +389,26 @@ public class PDFBoxWrapper {
 	 * @return whether or not the file has DRM
 	 */
 	public static boolean hasDRMGranular(File pPDF) {
+		PdfAnalysisContext context = new PdfAnalysisContext(pPDF);
+		try {
+			return hasDRMGranular(context);
+		} finally {
+			context.close();
+		}
+	}
+
+	/**
+	 * Check for encryption with Apache PDFBox
+	 * -> query the encryption dictionary (might allow more granular checks of protection)
+	 * @param pContext the analysis context of the pdf file to check
+	 * @return whether or not the file has DRM
+	 */
+	public static boolean hasDRMGranular(PdfAnalysisContext pContext) {
 
 		boolean ret = false;
 
 		try {
-			System.setProperty("org.apache.pdfbox.baseParser.pushBackSize", "1024768");
-			// NOTE: we use loadNonSeq here as it is the latest parser
-			// load() and parser.parse() have hung on test files
-			File tmp = File.createTempFile("flint-", ".tmp");
-			tmp.deleteOnExit();
-			RandomAccess scratchFile = new RandomAccessFile(tmp, "rw");
-			PDDocument doc = PDDocument.loadNonSeq(new FileInputStream(pPDF), scratchFile);
+			PDDocument doc = pContext.getPDDocument();
 
 			PDEncryptionDictionary dict = doc.getEncryptionDictionary();
 			if(dict!=null) {
@@ -305,8 +447,6 @@ public class PDFBoxWrapper {
 				}
 			}
 
-			doc.close();
-
 		} catch (Exception e) {
            LOGGER.warn("Exception while doing granular DRM checks leads to invalidity: {}", e);
 		}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Authors: William Palmer (William.Palmer@bl.uk)
+ *          Alecs Geuder (Alecs.Geuder@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.wrappers;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything the PDF checks need to know about one file, read and parsed at most
+ * once per library and shared between all checks of that file.
+ *
+ * The bytes of the file are memory-mapped, the PDFBox document, the iText reader and
+ * the preflight result are created lazily on first use.  A failure to parse is
+ * remembered as well and thrown again to every later caller, so a broken file is not
+ * parsed over and over again only to fail the same way.
+ *
+ * Each of them is guarded by its own lock, so checks running at the same time only
+ * wait for each other when they need the same library.  The parsed objects themselves
+ * are not thread-safe and must only be read by the checks.  The context has to be
+ * closed once all checks of the file are done; closing doesn't wait for checks that
+ * are still running, whatever they load after that is released straight away.
+ */
+public class PdfAnalysisContext implements Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PdfAnalysisContext.class);
+
+    private final File file;
+
+    private final Object bytesLock = new Object();
+    private volatile MappedByteBuffer buffer;
+
+    private final Object pdfBoxLock = new Object();
+    private final AtomicReference<PdfBoxDocument> pdDocument = new AtomicReference<PdfBoxDocument>();
+    private IOException pdDocumentError;
+
+    private final Object iTextLock = new Object();
+    private final AtomicReference<PdfReader> pdfReader = new AtomicReference<PdfReader>();
+    private Exception pdfReaderError;
+
+    private final Object preflightLock = new Object();
+    private boolean preflightDone = false;
+    private Element preflight;
+    private Exception preflightError;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new context for the given file; nothing is read until it is needed
+     * @param pFile the PDF file
+     */
+    public PdfAnalysisContext(File pFile) {
+        this.file = pFile;
+    }
+
+    /**
+     * @return the PDF file of this context
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the bytes of the file.  The file is mapped into memory on first call; files
+     * too large for a single mapping are not mapped and null is returned.
+     * @return a read-only view of the whole file positioned at 0, or null if it can't be mapped
+     * @throws IOException
+     */
+    public ByteBuffer getBytes() throws IOException {
+        synchronized (bytesLock) {
+            checkOpen();
+            if (buffer == null) {
+                if (file.length() > Integer.MAX_VALUE) {
+                    return null;
+                }
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    FileChannel channel = in.getChannel();
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    // the mapping stays valid after the channel is closed
+                    in.close();
+                }
+            }
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Open a new stream over the bytes of the file, reading from the mapped bytes
+     * where possible.  The caller has to close the stream.
+     * @return a stream over the whole file
+     * @throws IOException
+     */
+    public InputStream newInputStream() throws IOException {
+        ByteBuffer bytes = getBytes();
+        if (bytes == null) {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+        return new ByteBufferInputStream(bytes);
+    }
+
+    /**
+     * Get the file as loaded by PDFBox's non-sequential parser.
+     * @return the PDFBox document, not to be closed by the caller
+     * @throws IOException if PDFBox can't load the file, on this or an earlier call
+     */
+    public PDDocument getPDDocument() throws IOException {
+        synchronized (pdfBoxLock) {
+            checkOpen();
+            if (pdDocumentError != null) throw pdDocumentError;
+            PdfBoxDocument loaded = pdDocument.get();
+            if (loaded == null) {
+                loaded = new PdfBoxDocument();
+                try {
+                    loaded.load(file);
+                } catch (IOException e) {
+                    loaded.close();
+                    pdDocumentError = e;
+                    throw e;
+                }
+                pdDocument.set(loaded);
+                releaseIfClosed(pdDocument);
+            }
+            return loaded.doc;
+        }
+    }
+
+    /**
+     * Get the file as read by iText.
+     * @return the iText reader, not to be closed by the caller
+     * @throws Exception whatever iText threw when reading the file, on this or an earlier call
+     */
+    public PdfReader getPdfReader() throws Exception {
+        synchronized (iTextLock) {
+            checkOpen();
+            if (pdfReaderError != null) throw pdfReaderError;
+            PdfReader reader = pdfReader.get();
+            if (reader == null) {
+                try {
+                    LOGGER.debug("loading {} with iText", file);
+                    reader = new PdfReader(file.getAbsolutePath());
+                } catch (Exception e) {
+                    pdfReaderError = e;
+                    throw e;
+                }
+                pdfReader.set(reader);
+                releaseIfClosed(pdfReader);
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * Get the result of the preflight validation of the file.
+     * @return the preflight result element
+     * @throws Exception whatever the preflight validation threw, on this or an earlier call
+     */
+    public Element getPreflight() throws Exception {
+        synchronized (preflightLock) {
+            checkOpen();
+            if (preflightError != null) throw preflightError;
+            if (!preflightDone) {
+                try {
+                    preflight = PDFBoxWrapper.preflight(file);
+                } catch (Exception e) {
+                    preflightError = e;
+                    throw e;
+                } finally {
+                    preflightDone = true;
+                }
+            }
+            return preflight;
+        }
+    }
+
+    /**
+     * Release everything that has been loaded for the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        release(pdDocument);
+        release(pdfReader);
+        buffer = null;
+    }
+
+    /**
+     * Release what has just been loaded if the context was closed while loading it
+     * @param pRef the reference to the loaded object
+     */
+    private void releaseIfClosed(AtomicReference<?> pRef) {
+        if (closed) {
+            release(pRef);
+            checkOpen();
+        }
+    }
+
+    /**
+     * Release the object held by the reference, unless another thread already did
+     * @param pRef the reference to the loaded object
+     */
+    private void release(AtomicReference<?> pRef) {
+        Object loaded = pRef.getAndSet(null);
+        if (loaded instanceof PdfBoxDocument) {
+            ((PdfBoxDocument) loaded).close();
+        } else if (loaded instanceof PdfReader) {
+            ((PdfReader) loaded).close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("analysis context of " + file + " has already been closed");
+    }
+
+    /**
+     * A PDFBox document together with the scratch file it was loaded with
+     */
+    private static class PdfBoxDocument {
+        private File scratchFile;
+        private RandomAccessFile scratch;
+        private PDDocument doc;
+
+        void load(File pFile) throws IOException {
+            System.setProperty("org.apache.pdfbox.baseParser.pushBackSize", "1024768");
+            // NOTE: we use loadNonSeq here as it is the latest parser
+            // load() and parser.parse() have hung on test files
+            scratchFile = File.createTempFile("flint-", ".tmp");
+            scratchFile.deleteOnExit();
+            scratch = new RandomAccessFile(scratchFile, "rw");
+            LOGGER.debug("loading {} with PDFBox", pFile);
+            doc = PDDocument.loadNonSeq(pFile, scratch);
+        }
+
+        void close() {
+            if (doc != null) {
+                try {
+                    doc.close();
+                } catch (IOException e) {
+                    LOGGER.warn("could not close PDFBox document: {}", e);
+                }
+            }
+            if (scratch != null) {
+                try {
+                    scratch.close();
+                } catch (IOException e) {
+                    LOGGER.warn("could not close scratch file {}: {}", scratchFile, e);
+                }
+            }
+            if (scratchFile != null && !scratchFile.delete()) {
+                scratchFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * An input stream reading from a byte buffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer pBuf) {
+            this.buf = pBuf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
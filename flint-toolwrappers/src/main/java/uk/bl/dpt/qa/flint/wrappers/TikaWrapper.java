@@ -17,9 +17,15 @@
 package uk.bl.dpt.qa.flint.wrappers;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
 
 import org.apache.tika.detect.DefaultDetector;
 import org.apache.tika.io.TikaInputStream;
@@ -28,6 +34,10 @@ import org.apache.tika.mime.MediaType;
 
 /**
  * A class to wrap Apache Tika
+ *
+ * Before a file is handed to Tika, its first few KB are shown to a list of
+ * {@link Sniffer}s, which recognise the most common types by their signature,
+ * so that Tika is only needed for the files they don't know.
  * @author wpalmer
  *
  */
@@ -35,10 +45,83 @@ public class TikaWrapper {
 
 	private static final DefaultDetector detector = new DefaultDetector();
 
+	/**
+	 * Recognises a file type by the first bytes of a file
+	 */
+	public interface Sniffer {
+		/**
+		 * @param pHead the first bytes of the file
+		 * @param pLength the number of valid bytes in pHead
+		 * @return the mimetype, or null if the type isn't recognised
+		 */
+		public String sniff(byte[] pHead, int pLength);
+	}
+
+	// number of bytes shown to the sniffers
+	private static final int HEAD_SIZE = 4 * 1024;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] PDF_MAGIC = "%PDF-".getBytes(ASCII);
+
+	private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+	private static final byte[] OCF_MIMETYPE = "mimetype".getBytes(ASCII);
+
+	private static final Pattern MEDIA_TYPE = Pattern.compile("[a-z0-9.+-]+/[a-z0-9.+-]+");
+
+	/**
+	 * Recognises PDF files by the "%PDF-" they start with
+	 */
+	public static final Sniffer PDF = new Sniffer() {
+		@Override
+		public String sniff(byte[] pHead, int pLength) {
+			return startsWith(pHead, pLength, 0, PDF_MAGIC) ? "application/pdf" : null;
+		}
+	};
+
+	/**
+	 * Recognises OCF containers (EPUB, iBooks, OpenDocument) by their first zip entry,
+	 * an uncompressed file named "mimetype" which holds the container's mimetype
+	 */
+	public static final Sniffer OCF = new Sniffer() {
+		@Override
+		public String sniff(byte[] pHead, int pLength) {
+			// local file header: signature, ..., compression method at 8, sizes at 18/22,
+			// name and extra field lengths at 26/28, name at 30
+			if (!startsWith(pHead, pLength, 0, ZIP_MAGIC) || pLength < 30) return null;
+			if (uint16(pHead, 8) != 0 || uint16(pHead, 26) != OCF_MIMETYPE.length) return null;
+			if (!startsWith(pHead, pLength, 30, OCF_MIMETYPE)) return null;
+			int size = (int) Math.min(uint16(pHead, 18) | ((long) uint16(pHead, 20) << 16), 256);
+			int start = 30 + OCF_MIMETYPE.length + uint16(pHead, 28);
+			if (start + size > pLength) return null;
+			String type = new String(pHead, start, size, ASCII).trim();
+			return MEDIA_TYPE.matcher(type).matches() ? type : null;
+		}
+	};
+
+	private static final List<Sniffer> sniffers = new CopyOnWriteArrayList<Sniffer>(Arrays.asList(PDF, OCF));
+
+	// one buffer per thread, instead of one per file
+	private static final ThreadLocal<byte[]> heads = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[HEAD_SIZE];
+		}
+	};
+
 	private TikaWrapper() {
 		// TODO Auto-generated constructor stub
 	}
 	
+	/**
+	 * Add a sniffer, it is asked after the ones already known
+	 * @param pSniffer the sniffer to add
+	 */
+	public static void addSniffer(Sniffer pSniffer) {
+		sniffers.add(pSniffer);
+	}
+
 	/**
 	 * Get the mimetype of a file
 	 * @param pFile file to check
@@ -46,7 +129,14 @@ public class TikaWrapper {
 	 */
 	public static String getMimetype(File pFile) {
 			try {
-				return getMimetype(TikaInputStream.get(pFile));
+				String type = sniff(pFile);
+				if (type != null) return type;
+				TikaInputStream tis = TikaInputStream.get(pFile);
+				try {
+					return getMimetype(tis);
+				} finally {
+					tis.close();
+				}
 			} catch (FileNotFoundException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -78,4 +168,41 @@ public class TikaWrapper {
 		return type;
 	}
 
+	/**
+	 * Show the first bytes of a file to the sniffers
+	 * @param pFile file to check
+	 * @return the mimetype found by the first sniffer recognising it, or null
+	 * @throws IOException on error
+	 */
+	private static String sniff(File pFile) throws IOException {
+		byte[] head = heads.get();
+		int length = 0;
+		InputStream in = new FileInputStream(pFile);
+		try {
+			int read;
+			while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+				length += read;
+			}
+		} finally {
+			in.close();
+		}
+		for (Sniffer sniffer : sniffers) {
+			String type = sniffer.sniff(head, length);
+			if (type != null) return type;
+		}
+		return null;
+	}
+
+	private static boolean startsWith(byte[] pHead, int pLength, int pOffset, byte[] pPrefix) {
+		if (pOffset + pPrefix.length > pLength) return false;
+		for (int i = 0; i < pPrefix.length; i++) {
+			if (pHead[pOffset + i] != pPrefix[i]) return false;
+		}
+		return true;
+	}
+
+	private static int uint16(byte[] pBytes, int pOffset) {
+		return (pBytes[pOffset] & 0xff) | ((pBytes[pOffset + 1] & 0xff) << 8);
+	}
+
 }
@@ -16,30 +16,83 @@
  */
 package uk.bl.dpt.qa.flint.wrappers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class runs an external tool via command line and buffers stdout and stderr
  * This multi-threaded approach has to be used as otherwise Windows hangs 
+ *
+ * Both streams are drained at the same time by threads of a shared pool, so a tool
+ * filling one of them never blocks on the other.  Only the first bytes of each are
+ * kept, see {@link #setMaxOutputSize(int)}; a tool can be given a time limit, see
+ * {@link #setTimeout(long)}.  A tool that is killed is killed together with the
+ * processes it has started, as far as they can be found.
  * @author wpalmer
  *
  */
 public class ToolRunner {
 
+	private static Logger LOGGER = LoggerFactory.getLogger(ToolRunner.class);
+
+	// default limit of the output kept per stream [bytes]
+	private static final int DEFAULT_MAX_OUTPUT = 32 * 1024 * 1024;
+	// how long to wait for the output once a tool has exited [seconds]; a tool may have
+	// left processes behind that still hold its streams open
+	private static final long DRAIN_TIMEOUT = 10;
+
+	private static final ExecutorService pumps = Executors.newCachedThreadPool(new DaemonThreadFactory("flint-tool-output"));
+	private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("flint-tool-timeout"));
+
+	/**
+	 * Exception for when a tool didn't finish in time
+	 */
+	public static class TimeoutException extends IOException {
+		private static final long serialVersionUID = -2634529106413658212L;
+
+		/**
+		 * Create a new TimeoutException
+		 * @param message description of the tool that timed out
+		 */
+		public TimeoutException(String message) {
+			super(message);
+		}
+	}
+
 	private boolean gRedirectStderr = false;
+	private long gTimeout = 0;
+	private int gMaxOutput = DEFAULT_MAX_OUTPUT;
+	private boolean gTruncated = false;
 	
 	/**
 	 * Create a new ToolRunner (not redirecting stderr to stdout)
 	 */
 	public ToolRunner() {
-		// TODO Auto-generated constructor stub
 	}
 	
 	/**
@@ -49,12 +102,32 @@ public class ToolRunner {
 	public ToolRunner(boolean pRedirectStderr) {
 		gRedirectStderr = pRedirectStderr;
 	}
+
+	/**
+	 * Set a time limit for the commands run; a command still running after that
+	 * is killed and a {@link TimeoutException} thrown.
+	 * @param pSeconds the time limit [s], or 0 for none (the default)
+	 */
+	public void setTimeout(long pSeconds) {
+		gTimeout = pSeconds;
+	}
+
+	/**
+	 * Set how much of each output stream is kept; the rest is read but thrown away.
+	 * @param pBytes maximum number of bytes kept per stream
+	 */
+	public void setMaxOutputSize(int pBytes) {
+		gMaxOutput = pBytes;
+	}
 	
 	private BufferedReader gStdout = null;
 	private BufferedReader gStderr = null;
 	
 	/**
 	 * Executes a given command line.  Note stdout and stderr will be populated by this method.
+	 * If the calling thread is interrupted while waiting for the command, the command is
+	 * killed and an {@link InterruptedIOException} thrown, with the thread's interrupt
+	 * status set again.
 	 * @param pCommandLine command line to run
 	 * @return exit code from execution of the command line
 	 * @throws IOException error
@@ -67,74 +140,207 @@ public class ToolRunner {
 
 		ArrayList<String> commandLine = new ArrayList<String>();
 		commandLine.addAll(pCommandLine);
-		//this simulates EOF, apparently
-		//if(windows)
-		//commandLine.add("<NUL");
 
 		ProcessBuilder pb = new ProcessBuilder(commandLine);
 		//don't redirect stderr to stdout as our output XML is in stdout
 		if(gRedirectStderr) {
 			pb.redirectErrorStream(gRedirectStderr);
 		}
-		
-		//force this setting in JDK6
-		//pb.redirectErrorStream(true);
-		
-/* JDK7+ only
-		//log outputs to file(s) - fixes hangs on windows
-		//and logs *all* output (unlike when using IOStreamThread)
-		File stdoutFile = File.createTempFile("stdout-log-", ".log");
-		stdoutFile.deleteOnExit();
-		File stderrFile = File.createTempFile("stderr-log-", ".log");
-		stderrFile.deleteOnExit();
-	
-		pb.redirectOutput(stdoutFile);
-		if(!gRedirectStderr) {
-			pb.redirectError(stderrFile);
-		}
- */
+
+		gStdout = null;
+		gStderr = null;
+		gTruncated = false;
 
 		//start the executable
-		Process proc = pb.start();
-		//create a log of the console output
-		InputStream stdout = proc.getInputStream();
-		InputStream stderr = proc.getErrorStream();
-		ByteArrayOutputStream byteArrayStdout = new ByteArrayOutputStream();
-		ByteArrayOutputStream byteArrayStderr = new ByteArrayOutputStream();
-		gStdout = new BufferedReader(new InputStreamReader(stdout));
-		if(!gRedirectStderr) {
-			gStderr = new BufferedReader(new InputStreamReader(stdout));
-		} else {
-			gStderr = null;
-		}
-		// consume buffers
-		// use the fact that exitvalue will throw an exception if the process is still running to drain the buffer
-		while(true) {
+		final Process proc = pb.start();
+		//nothing is ever written to the tool, so it sees EOF straight away
+		proc.getOutputStream().close();
+		Pump stdout = new Pump(proc.getInputStream(), gMaxOutput);
+		Pump stderr = gRedirectStderr ? null : new Pump(proc.getErrorStream(), gMaxOutput);
+		Future<byte[]> stdoutBytes = pumps.submit(stdout);
+		Future<byte[]> stderrBytes = (stderr == null) ? null : pumps.submit(stderr);
+
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		ScheduledFuture<?> kill = null;
+		if (gTimeout > 0) {
+			kill = timeouts.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedOut.set(true);
+					destroyTree(proc);
+				}
+			}, gTimeout, TimeUnit.SECONDS);
+		}
+
+		boolean finished = false;
+		try {
+			int exitCode = proc.waitFor();
+			if (kill != null) kill.cancel(false);
+			if (timedOut.get()) {
+				throw new TimeoutException(commandLine.get(0) + " didn't finish within " + gTimeout + " seconds");
+			}
+			gStdout = reader(drain(stdoutBytes, stdout));
+			if (stderr != null) {
+				gStderr = reader(drain(stderrBytes, stderr));
+			}
+			gTruncated = stdout.truncated || (stderr != null && stderr.truncated);
+			if (gTruncated) {
+				LOGGER.warn("output of {} exceeded {} bytes and was truncated", commandLine.get(0), gMaxOutput);
+			}
+			finished = true;
+			return exitCode;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while running " + commandLine.get(0));
+		} finally {
+			if (kill != null) kill.cancel(false);
+			if (!finished) {
+				destroyTree(proc);
+			}
+		}
+	}
+
+	/**
+	 * Kill a tool together with the processes it has started.  Java 7 has no way of
+	 * finding those, so on unix they are looked up with ps; elsewhere, or if that
+	 * fails, only the tool itself is killed.
+	 *
+	 * The descendants are taken from a single list of processes, which only counts if
+	 * the tool was still running before and after it was made: the pid of a tool that
+	 * has exited, and so the parent pids in the list, may belong to other processes.
+	 * @param pProc the tool's process
+	 */
+	private static void destroyTree(Process pProc) {
+		// find the descendants first, they are reparented once the tool is gone
+		List<String> descendants = isAlive(pProc) ? descendants(pProc) : new ArrayList<String>();
+		if (!isAlive(pProc)) descendants.clear();
+		pProc.destroy();
+		if (!descendants.isEmpty()) {
+			List<String> commandLine = new ArrayList<String>();
+			commandLine.add("kill");
+			commandLine.add("-KILL");
+			commandLine.addAll(descendants);
 			try {
-				proc.exitValue();
-			} catch(IllegalThreadStateException e) {
-				byteArrayStdout.write(stdout.read());
-				byteArrayStderr.write(stderr.read());
-				continue;
+				output(commandLine);
+			} catch (IOException e) {
+				LOGGER.warn("could not kill the processes {} left behind by a tool: {}", descendants, e);
 			}
-			break;
 		}
-		
-		//reconstruct a buffer
-		byteArrayStdout.close();
-		gStdout = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(byteArrayStdout.toByteArray())));
-		if(!gRedirectStderr) {
-			byteArrayStderr.close();
-			gStderr = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(byteArrayStderr.toByteArray())));
+	}
+
+	/**
+	 * Process.isAlive() is only there from Java 8 on
+	 * @param pProc a process
+	 * @return whether the process hasn't exited yet
+	 */
+	private static boolean isAlive(Process pProc) {
+		try {
+			pProc.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
 		}
+	}
+
+	/**
+	 * Find the processes started by a tool, and the ones started by those, and so on
+	 * @param pProc the tool's process
+	 * @return the process ids, or an empty list if they can't be found
+	 */
+	private static List<String> descendants(Process pProc) {
+		List<String> descendants = new ArrayList<String>();
+		if (System.getProperty("os.name").toLowerCase().contains("windows")) return descendants;
+		String pid;
 		try {
-			//wait for process to end before continuing
-			proc.waitFor();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}		
-		return proc.exitValue();
+			// Process.pid() is only there from Java 9 on, before that only UNIXProcess knows its pid
+			pid = String.valueOf(Process.class.getMethod("pid").invoke(pProc));
+		} catch (Exception e) {
+			try {
+				Field field = pProc.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				pid = String.valueOf(field.getInt(pProc));
+			} catch (Exception e2) {
+				LOGGER.debug("can't get the pid of a tool: {}", e2);
+				return descendants;
+			}
+		}
+		Map<String, List<String>> children = new HashMap<String, List<String>>();
+		try {
+			for (String line : output(Arrays.asList("ps", "-A", "-o", "pid=", "-o", "ppid=")).split("\n")) {
+				String[] ids = line.trim().split("\\s+");
+				if (ids.length != 2) continue;
+				List<String> siblings = children.get(ids[1]);
+				if (siblings == null) {
+					siblings = new ArrayList<String>();
+					children.put(ids[1], siblings);
+				}
+				siblings.add(ids[0]);
+			}
+		} catch (IOException e) {
+			LOGGER.debug("can't list the processes started by a tool: {}", e);
+			return descendants;
+		}
+		LinkedList<String> parents = new LinkedList<String>();
+		parents.add(pid);
+		while (!parents.isEmpty()) {
+			List<String> found = children.get(parents.removeFirst());
+			if (found != null) {
+				descendants.addAll(found);
+				parents.addAll(found);
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Run a short-lived helper command and read its output.  The command isn't waited
+	 * for beyond the end of its output, so this works in an interrupted thread as well.
+	 * @param pCommandLine the command line
+	 * @return stdout and stderr of the command
+	 * @throws IOException
+	 */
+	private static String output(List<String> pCommandLine) throws IOException {
+		Process proc = new ProcessBuilder(pCommandLine).redirectErrorStream(true).start();
+		proc.getOutputStream().close();
+		InputStream in = proc.getInputStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8 * 1024];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+			return out.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Wait for a pump to read the remaining output of an exited tool
+	 * @param pBytes the pump's result
+	 * @param pPump the pump
+	 * @return the output read
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static byte[] drain(Future<byte[]> pBytes, Pump pPump) throws IOException, InterruptedException {
+		try {
+			try {
+				return pBytes.get(DRAIN_TIMEOUT, TimeUnit.SECONDS);
+			} catch (java.util.concurrent.TimeoutException e) {
+				// closing the stream ends the pump with whatever it has read so far
+				LOGGER.warn("output of a tool is still open {} seconds after it exited, closing it", DRAIN_TIMEOUT);
+				pPump.in.close();
+				return pBytes.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("could not read the output of a tool", e.getCause());
+		}
+	}
+
+	private static BufferedReader reader(byte[] pBytes) {
+		return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(pBytes)));
 	}
 	
 	/**
@@ -153,4 +359,67 @@ public class ToolRunner {
 		return gStderr;
 	}
 
+	/**
+	 * @return whether the output of the last command was cut off at the maximum size
+	 */
+	public boolean isOutputTruncated() {
+		return gTruncated;
+	}
+
+	/**
+	 * Reads a stream to its end, keeping no more than the given number of bytes
+	 */
+	private static class Pump implements Callable<byte[]> {
+		private final InputStream in;
+		private final int max;
+		private volatile boolean truncated = false;
+
+		Pump(InputStream pIn, int pMax) {
+			this.in = pIn;
+			this.max = pMax;
+		}
+
+		@Override
+		public byte[] call() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8 * 1024];
+			try {
+				int read;
+				while ((read = in.read(buf)) != -1) {
+					int keep = Math.min(read, max - out.size());
+					if (keep > 0) out.write(buf, 0, keep);
+					if (keep < read) truncated = true;
+				}
+			} catch (IOException e) {
+				// the stream was closed, as the tool was killed or has left it open for too long
+				LOGGER.debug("stopped reading tool output: {}", e);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOGGER.debug("could not close tool output: {}", e);
+				}
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Names the threads so they can be told apart in the logs, and doesn't keep the jvm alive
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+
+		DaemonThreadFactory(String pName) {
+			this.name = pName;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
 }
@@ -17,14 +17,11 @@
 package uk.bl.dpt.qa.flint.wrappers;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 import java.util.List;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Tools class
@@ -62,113 +59,50 @@ public class Tools {
 	 */
 	public static void zipGeneratedFiles(boolean pSuccess, Map<String, String> pChecksums,
 			List<String> pGeneratedFiles, String pZipFile, String pTempDir) throws IOException {
-		
-		final int BUFSIZE = 32768;
-		
-		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pZipFile));
 
-		int compression = ZipEntry.STORED;
-		
-		//add an empty file indicating success or failure
-		ZipEntry status;
-		if(pSuccess) status = new ZipEntry("SUCCESS");
-		else status = new ZipEntry("FAILURE");
-		status.setSize(0);
-		status.setTime(0);
-		status.setMethod(compression);
-		status.setCrc(0);
-		zip.putNextEntry(status);
-		zip.closeEntry();
-		
-		//generate a manifest file and write it to the zip as the first entry
-		ZipEntry manifest = new ZipEntry("manifest-md5.txt");
-		manifest.setTime(0);
-		manifest.setMethod(compression);
-		CRC32 crc = new CRC32();
-		long size = 0;
-		for(String file : pChecksums.keySet()) {
-			//nasty hack
-			if(file.endsWith(".report.xml")) continue;
-			
-			//String fn = new File(file).getName();
-			//only add the file if it exists!
-			if(new File(pTempDir+file).exists()) {
-				String out = pChecksums.get(file).split(":")[1]+"  data/"+file+"\n";
-				size+=out.getBytes().length;
-				crc.update(out.getBytes());
-			}
-		}
-		manifest.setCrc(crc.getValue());
-		manifest.setSize(size);
-		zip.putNextEntry(manifest);
+		ZipPackager zip = new ZipPackager(pSuccess);
+
+		//generate a manifest file, it is written to the zip as the first entry after the status
 		for(String file : pChecksums.keySet()) {
 			//nasty hack
 			if(file.endsWith(".report.xml")) continue;
-
-			//String fn = new File(file).getName();
 			
-			//THIS MUST MATCH THE ABOVE STRING EXACTLY!
 			//only add the file if it exists!
 			if(new File(pTempDir+file).exists()) {
-				String out = pChecksums.get(file).split(":")[1]+"  data/"+file+"\n";
-				zip.write(out.getBytes());
+				zip.addToManifest(pChecksums.get(file).split(":")[1], "data/"+file);
 			}
 		}
-		zip.closeEntry();
 		
-		//copy all the files in
+		//add all the files
 		for(String file : pGeneratedFiles) {
-			//add file to zip
 			File input = new File(pTempDir+file);
 			
 			//file does not exist - obvious error condition but continue anyhow
 			if(!input.exists()) continue;
 			
-			FileInputStream inData = new FileInputStream(input);
-			ZipEntry entry;
-			//hack to shorten report and log file names
-			if(file.endsWith(".report.xml")) {
-				entry = new ZipEntry("report.xml");
-			/* } else if(file.endsWith(".log")) {
-				entry = new ZipEntry("log.txt"); */
-			} else {
-				String fn = new File(file).getName();
-
-				entry = new ZipEntry("data/"+fn);
-			}
-			
-			System.out.println(entry.getName());
-			
-			entry.setSize(input.length());
-			entry.setTime(input.lastModified());
-			entry.setMethod(compression);
+			zip.addFile(input, entryName(file));
+		}
 
-			//there has to be a better way to generate the CRC than this!
-			crc = new CRC32();
-			byte[] readBuffer = new byte[BUFSIZE];
-			int bytesRead = 0;
-			while(inData.available()>0) {
-				bytesRead = inData.read(readBuffer);
-				crc.update(readBuffer, 0, bytesRead);
-			}
-			entry.setCrc(crc.getValue());
-			//reset inData, again there has to be a better way
-			inData.close();
-			inData = new FileInputStream(input);
-			
-			zip.putNextEntry(entry);			
+		OutputStream out = new FileOutputStream(pZipFile);
+		try {
+			zip.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
 
-			readBuffer = new byte[BUFSIZE];
-			bytesRead = 0;
-			while(inData.available()>0) {
-				bytesRead = inData.read(readBuffer);
-				zip.write(readBuffer, 0, bytesRead);
-			}
-			
-			inData.close();
-			zip.closeEntry();
+	/**
+	 * Get the name of a generated file in the zip
+	 * @param pFile the generated file's name
+	 * @return the name of the file in the zip
+	 */
+	public static String entryName(String pFile) {
+		//hack to shorten report and log file names
+		if(pFile.endsWith(".report.xml")) {
+			return "report.xml";
+		/* } else if(file.endsWith(".log")) {
+			return "log.txt"; */
 		}
-		
-		zip.close();
+		return "data/"+new File(pFile).getName();
 	}
 }
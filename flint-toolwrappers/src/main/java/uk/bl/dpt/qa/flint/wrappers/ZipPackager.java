@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa.flint.wrappers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Packs files into an uncompressed zip, together with an empty SUCCESS or FAILURE
+ * entry and an md5 manifest, written straight to any output stream (e.g. one on HDFS).
+ *
+ * A file's CRC and md5 are computed together when it is added, which is the only
+ * time it is read before it is copied into the zip; the copy uses
+ * {@link FileChannel#transferTo} where the output allows it.  Zip64 is not
+ * supported, i.e. files and the whole zip have to stay below 4GB.
+ */
+public class ZipPackager {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	// version 1.0, enough for stored entries
+	private static final short VERSION = 10;
+	// names are UTF-8 encoded
+	private static final short FLAGS = 0x0800;
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+	private final boolean success;
+	private final StringBuilder manifest = new StringBuilder();
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Create a new ZipPackager
+	 * @param pSuccess whether the workflow that generated the files was successful or not
+	 */
+	public ZipPackager(boolean pSuccess) {
+		this.success = pSuccess;
+	}
+
+	/**
+	 * Add a file to the zip, reading it once to get its CRC and md5
+	 * @param pFile the file to add
+	 * @param pEntryName name of the file in the zip
+	 * @return the hex encoded md5 of the file
+	 * @throws IOException file access error
+	 */
+	public String addFile(File pFile, String pEntryName) throws IOException {
+		CRC32 crc = new CRC32();
+		MessageDigest md5 = md5();
+		long size = 0;
+		FileInputStream in = new FileInputStream(pFile);
+		try {
+			byte[] buf = new byte[32 * 1024];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				crc.update(buf, 0, read);
+				md5.update(buf, 0, read);
+				size += read;
+			}
+		} finally {
+			in.close();
+		}
+		entries.add(new Entry(pEntryName, pFile, null, crc.getValue(), size, pFile.lastModified()));
+		return hex(md5.digest());
+	}
+
+	/**
+	 * Add a line to the manifest, in the format of md5sum
+	 * @param pMd5 the hex encoded md5
+	 * @param pPath the path to list it for
+	 */
+	public void addToManifest(String pMd5, String pPath) {
+		manifest.append(pMd5).append("  ").append(pPath).append("\n");
+	}
+
+	/**
+	 * Write the zip: the SUCCESS or FAILURE entry first, then the manifest, then the files
+	 * in the order they were added.  The stream is not closed.
+	 * @param pOut where to write the zip to
+	 * @throws IOException file access error, or if a file has changed since it was added
+	 */
+	public void writeTo(OutputStream pOut) throws IOException {
+		List<Entry> all = new ArrayList<Entry>();
+		all.add(new Entry(success ? "SUCCESS" : "FAILURE", null, new byte[0], 0, 0, 0));
+		byte[] manifestBytes = manifest.toString().getBytes(UTF8);
+		CRC32 crc = new CRC32();
+		crc.update(manifestBytes);
+		all.add(new Entry("manifest-md5.txt", null, manifestBytes, crc.getValue(), manifestBytes.length, 0));
+		all.addAll(entries);
+		if (all.size() > 0xFFFF) throw new IOException("too many entries for a zip without zip64: " + all.size());
+
+		pOut.flush();
+		WritableByteChannel out = (pOut instanceof FileOutputStream) ?
+				((FileOutputStream) pOut).getChannel() : Channels.newChannel(pOut);
+		long offset = 0;
+		for (Entry entry : all) {
+			entry.offset = offset;
+			ByteBuffer header = header(entry, false);
+			offset += write(out, header);
+			offset += entry.copyTo(out);
+		}
+		long directory = offset;
+		for (Entry entry : all) {
+			offset += write(out, header(entry, true));
+		}
+		if (offset > MAX_SIZE) throw new IOException("zip too large without zip64");
+		ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_OF_CENTRAL_DIRECTORY);
+		end.putShort((short) 0).putShort((short) 0);
+		end.putShort((short) all.size()).putShort((short) all.size());
+		end.putInt((int) (offset - directory));
+		end.putInt((int) directory);
+		end.putShort((short) 0);
+		end.flip();
+		write(out, end);
+		pOut.flush();
+	}
+
+	/**
+	 * Build the local or central directory header of an entry
+	 * @param pEntry the entry
+	 * @param pCentral whether to build the central directory header
+	 * @return the header, ready to be written
+	 * @throws IOException if the entry is too large for a zip without zip64
+	 */
+	private static ByteBuffer header(Entry pEntry, boolean pCentral) throws IOException {
+		if (pEntry.size > MAX_SIZE || pEntry.offset > MAX_SIZE) {
+			throw new IOException("entry " + pEntry.name + " too large for a zip without zip64");
+		}
+		byte[] name = pEntry.name.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate((pCentral ? 46 : 30) + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(pCentral ? CENTRAL_HEADER : LOCAL_HEADER);
+		if (pCentral) header.putShort((short) 20);
+		header.putShort(VERSION);
+		header.putShort(FLAGS);
+		// stored
+		header.putShort((short) 0);
+		header.putInt((int) dosTime(pEntry.time));
+		header.putInt((int) pEntry.crc);
+		header.putInt((int) pEntry.size);
+		header.putInt((int) pEntry.size);
+		header.putShort((short) name.length);
+		// no extra field
+		header.putShort((short) 0);
+		if (pCentral) {
+			// no comment, disk 0, no attributes
+			header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0);
+			header.putInt((int) pEntry.offset);
+		}
+		header.put(name);
+		header.flip();
+		return header;
+	}
+
+	private static long write(WritableByteChannel pOut, ByteBuffer pBytes) throws IOException {
+		long written = pBytes.remaining();
+		while (pBytes.hasRemaining()) {
+			pOut.write(pBytes);
+		}
+		return written;
+	}
+
+	/**
+	 * Convert a java time to the MS-DOS date and time used in zips, as ZipOutputStream does
+	 * @param pTime milliseconds since the epoch
+	 * @return the date in the upper, the time in the lower 16 bits
+	 */
+	private static long dosTime(long pTime) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(pTime);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+	private static String hex(byte[] pBytes) {
+		StringBuilder sb = new StringBuilder(pBytes.length * 2);
+		for (byte b : pBytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * An entry of the zip, with its content either in a file or in memory
+	 */
+	private static class Entry {
+		private final String name;
+		private final File file;
+		private final byte[] bytes;
+		private final long crc;
+		private final long size;
+		private final long time;
+		private long offset;
+
+		Entry(String pName, File pFile, byte[] pBytes, long pCrc, long pSize, long pTime) {
+			this.name = pName;
+			this.file = pFile;
+			this.bytes = pBytes;
+			this.crc = pCrc;
+			this.size = pSize;
+			this.time = pTime;
+		}
+
+		long copyTo(WritableByteChannel pOut) throws IOException {
+			if (bytes != null) {
+				return write(pOut, ByteBuffer.wrap(bytes));
+			}
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				if (channel.size() != size) {
+					throw new IOException(file + " has changed since it was added to the zip");
+				}
+				long position = 0;
+				while (position < size) {
+					long transferred = channel.transferTo(position, size - position, pOut);
+					if (transferred <= 0) {
+						throw new IOException(file + " has changed since it was added to the zip");
+					}
+					position += transferred;
+				}
+				return position;
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
@@ -94,13 +94,26 @@ public class iTextWrapper {
      * @return whether the file is valid or not
      */
     public static boolean isValid(File pFile) {
+        PdfAnalysisContext context = new PdfAnalysisContext(pFile);
+        try {
+            return isValid(context);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Check if a PDF file is valid or not
+     * @param pContext the analysis context of the file to check
+     * @return whether the file is valid or not
+     */
+    public static boolean isValid(PdfAnalysisContext pContext) {
 
         boolean ret = false;
 
-        PdfReader reader = null;
         try {
-            reader = new PdfReader(pFile.getAbsolutePath());
-            LOGGER.debug("validating through {} pages of {}", reader.getNumberOfPages(), pFile.getName());
+            PdfReader reader = pContext.getPdfReader();
+            LOGGER.debug("validating through {} pages of {}", reader.getNumberOfPages(), pContext.getFile().getName());
             for(int i=0;i<reader.getNumberOfPages();i++) {
                 //page numbers start at 1
                 PdfTextExtractor.getTextFromPage(reader, (i+1));
@@ -114,8 +127,6 @@ public class iTextWrapper {
             LOGGER.warn("IOException leads to invalidity: {}", e);
         } catch (Exception e) {
             LOGGER.warn("Exception leads to invalidity: {}", e);
-        } finally {
-            if (reader != null) reader.close();
         }
 
         return ret;
@@ -127,13 +138,25 @@ public class iTextWrapper {
      * @return whether the file is had DRM or not
      */
     public static boolean hasDRM(File pFile) {
+        PdfAnalysisContext context = new PdfAnalysisContext(pFile);
+        try {
+            return hasDRM(context);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Check if a PDF file has DRM or not
+     * @param pContext the analysis context of the file to check
+     * @return whether the file is had DRM or not
+     */
+    public static boolean hasDRM(PdfAnalysisContext pContext) {
 
         boolean drm = false;
 
-        PdfReader reader = null;
         try {
-            reader = new PdfReader(pFile.getAbsolutePath());
-            drm = reader.isEncrypted();
+            drm = pContext.getPdfReader().isEncrypted();
         } catch (BadPasswordException e) {
             //assume drm
             drm = true;
@@ -142,8 +165,6 @@ public class iTextWrapper {
             //e.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-           if (reader != null) reader.close();
         }
 
         return drm;
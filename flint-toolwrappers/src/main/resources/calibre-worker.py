@@ -0,0 +1,52 @@
+# Keeps one calibre process converting ebooks for FLint's CalibreWrapper, so
+# calibre doesn't have to start up again for every file.  Run with
+#
+#   calibre-debug -e calibre-worker.py
+#
+# Reads one request per line from stdin: the input and the output path, UTF-8
+# encoded and separated by a tab.  Answers each request with a line
+#
+#   FLINT-RESULT <exit code>
+#
+# calibre's own output goes to the same stdout, as it would for ebook-convert,
+# and is left to the caller to look for the success message.  As that output may
+# end in an unfinished line, every answer starts on a line of its own.
+# Exits at the end of stdin.
+import sys
+import traceback
+
+from calibre.ebooks.conversion.cli import main
+
+requests = getattr(sys.stdin, 'buffer', sys.stdin)
+stdout = sys.stdout
+
+
+def answer(line):
+    # calibre's output has to be out before the answer that ends it
+    for stream in (sys.stdout, sys.stderr, sys.__stdout__, sys.__stderr__):
+        try:
+            stream.flush()
+        except Exception:
+            pass
+    stdout.write('\n' + line + '\n')
+    stdout.flush()
+
+
+answer('FLINT-READY')
+while True:
+    request = requests.readline()
+    if not request:
+        break
+    src, dst = request.decode('utf-8').rstrip(u'\r\n').split(u'\t')
+    try:
+        code = main(['ebook-convert', src, dst])
+    except SystemExit as e:
+        code = e.code
+    except Exception:
+        traceback.print_exc()
+        code = 1
+    if code is None:
+        code = 0
+    elif not isinstance(code, int):
+        code = 1
+    answer('FLINT-RESULT %d' % code)